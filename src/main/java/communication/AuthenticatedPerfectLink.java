@@ -3,42 +3,67 @@ package communication;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashSet;
+import java.security.interfaces.RSAKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import consensus.ProcessInfo;
 
 /**
  * Implementation of Authenticated Perfect Links over UDP
  */
-public class AuthenticatedPerfectLink {
+public class AuthenticatedPerfectLink implements PerfectLink {
+
+	// Longest selective-acknowledgment bitmap, in 64-bit words
+	private static final int SACK_WORDS = 4;
 
 	private final int selfId;
 	private final Map<Integer, ProcessInfo> processes;
 	private final PrivateKey privateKey;
-	private final DatagramSocket socket;
-	private final ExecutorService executor;
-	private final Set<MessageId> delivered;
-	private final Map<MessageId, Message> pendingAcks;
+	private final LinkConfig config;
+	private final Transport transport;
+	private final VerificationPipeline verificationPipeline; // null when verifying inline
+	private final SessionKeyManager sessionKeys; // null when every message is RSA-signed
+	private final VerifiedFrameCache verifiedFrames; // null when every frame is verified
+	private final Map<Integer, DeliveryWindow> delivered; // Read-only after construction
+	private final Map<Integer, FragmentReassembler> reassembly; // Read-only after construction
+	private final long incarnation;
+	private final int signatureLength; // Bytes of an RSA signature with our key
+	private final int frameOverhead; // Bytes of a frame that are not message payload
+	private final Map<Integer, ConcurrentNavigableMap<Long, PendingFrame>> pendingAcks; // By destination and sequence number
+	private final Map<Integer, Message> owedAcks; // Latest cumulative ACK not yet sent to each peer
+	private final Map<Integer, AtomicLong> nextSequence;
+	private final Map<Integer, AtomicInteger> sequencing; // Sequence numbers taken and not yet recorded as pending, by destination
+	private final Map<Integer, Long> lastSync; // When a SYNC was last sent to each peer, in nanoseconds
+	private final Map<Integer, RttEstimator> rttEstimators;
+	private final LinkMetrics metrics;
+	private final HashedTimerWheel timer; // Retransmissions, delayed ACKs and reassembly deadlines
+	private final OutboundBatcher batcher; // null when every message gets its own datagram
+	private final OutboundQueues outbound;
 
 	private DeliverCallback deliverCallback;
-	private boolean running;
+	private volatile CapacityCallback capacityCallback;
+	private volatile boolean running;
 
 	/**
 	 * Constructor
@@ -49,18 +74,126 @@ public class AuthenticatedPerfectLink {
 	 * @param port       UDP port to bind to
 	 */
 	public AuthenticatedPerfectLink(int selfId, Map<Integer, ProcessInfo> processes, PrivateKey privateKey, int port)
-			throws SocketException {
+			throws IOException {
+		this(selfId, processes, privateKey, port, new LinkConfig());
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param selfId     The ID of this process
+	 * @param processes  Map of process IDs to their network information
+	 * @param privateKey Private key of this process
+	 * @param port       UDP port to bind to
+	 * @param config     Link options (transport, thread counts, buffer sizes)
+	 */
+	public AuthenticatedPerfectLink(int selfId, Map<Integer, ProcessInfo> processes, PrivateKey privateKey, int port,
+			LinkConfig config) throws IOException {
+		this(selfId, processes, privateKey, createTransport(processes, selfId, port, config), config);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param selfId     The ID of this process
+	 * @param processes  Map of process IDs to their network information
+	 * @param privateKey Private key of this process
+	 * @param transport  Transport the link sends and receives frames with
+	 * @param config     Link options (transport, thread counts, buffer sizes)
+	 */
+	public AuthenticatedPerfectLink(int selfId, Map<Integer, ProcessInfo> processes, PrivateKey privateKey,
+			Transport transport, LinkConfig config) {
 		this.selfId = selfId;
 		this.processes = processes;
 		this.privateKey = privateKey;
-		this.socket = new DatagramSocket(port);
-		this.executor = Executors.newFixedThreadPool(2); // One for receiving, one for retransmission
-		this.delivered = Collections.synchronizedSet(new HashSet<>());
+		this.config = config;
+		this.signatureLength = (((RSAKey) privateKey).getModulus().bitLength() + 7) / 8;
+		// A session MAC tag is shorter than the signature, so this covers both
+		this.frameOverhead = SignedMessage.FRAME_HEADER_SIZE + Message.HEADER_SIZE
+				+ Math.max(signatureLength, SessionKeyManager.TAG_LENGTH);
+		// A datagram must hold a fragment chunk, a full selective ACK and, with
+		// session MACs, a handshake carrying a key wrapped with the peer's public key
+		int smallestFrame = frameOverhead + Math.max(FragmentReassembler.HEADER_SIZE + 1, SACK_WORDS * Long.BYTES);
+		if (config.isSessionMac()) {
+			for (ProcessInfo process : processes.values()) {
+				smallestFrame = Math.max(smallestFrame, frameOverhead + Long.BYTES
+						+ (((RSAKey) process.getPublicKey()).getModulus().bitLength() + 7) / 8);
+			}
+		}
+		if (config.getMaxDatagramSize() < smallestFrame) {
+			throw new IllegalArgumentException("maxDatagramSize of " + config.getMaxDatagramSize()
+					+ " bytes is below the " + smallestFrame + " bytes a frame may need");
+		}
+		this.transport = transport;
+
+		this.outbound = new OutboundQueues(processes, config.getSendQueueDepth(), transport::send);
+		this.sessionKeys = config.isSessionMac() ? new SessionKeyManager(privateKey) : null;
+		this.verifiedFrames = config.getVerifiedCacheSize() > 0
+				? new VerifiedFrameCache(config.getVerifiedCacheSize())
+				: null;
+
+		if (config.getVerifierThreads() > 0) {
+			this.verificationPipeline = new VerificationPipeline(config.getVerifierThreads(), this::verifySignature,
+					this::handleVerifiedMessage);
+		} else {
+			this.verificationPipeline = null;
+		}
+
+		this.timer = new HashedTimerWheel("apl-timer", config.getTimerTickMs(), 512);
+		this.delivered = new HashMap<>();
+		this.reassembly = new HashMap<>();
 		this.pendingAcks = new ConcurrentHashMap<>();
+		this.owedAcks = new ConcurrentHashMap<>();
+
+		// Sequence numbers are per destination and start from the clock, so a
+		// restarted process never reuses numbers its peers already delivered.
+		// The first number doubles as the incarnation peers reset their window on.
+		this.nextSequence = new ConcurrentHashMap<>();
+		this.sequencing = new ConcurrentHashMap<>();
+		this.lastSync = new ConcurrentHashMap<>();
+		this.rttEstimators = new ConcurrentHashMap<>();
+		this.incarnation = System.currentTimeMillis() << 16;
+		for (int processId : processes.keySet()) {
+			delivered.put(processId, new DeliveryWindow(config.getDeliveryWindowSize()));
+			reassembly.put(processId, new FragmentReassembler(config.getMaxMessageSize(),
+					config.getReassemblyBufferBytes(), timer, config.getReassemblyTimeoutMs()));
+			nextSequence.put(processId, new AtomicLong(incarnation));
+			sequencing.put(processId, new AtomicInteger());
+			pendingAcks.put(processId, new ConcurrentSkipListMap<>());
+			rttEstimators.put(processId, new RttEstimator(config.getInitialRtoMs(), config.getMinRtoMs(),
+					config.getMaxRtoMs()));
+		}
+		this.metrics = new LinkMetrics(selfId, processes.keySet(), peer -> pendingAcks.get(peer).size(),
+				peer -> rttEstimators.get(peer).getRtoMs());
+
+		// Leave room in the datagram for the link headers, the signature and the batch count
+		this.batcher = config.getBatchFlushMicros() > 0
+				? new OutboundBatcher(config.getBatchFlushMicros(),
+						Math.min(config.getBatchMaxBytes(),
+								config.getMaxDatagramSize() - frameOverhead - Integer.BYTES),
+						this::flushBatch)
+				: null;
 		this.running = false;
 	}
 
+	/**
+	 * Send a message to a destination
+	 *
+	 * @throws BackpressureException if the destination's queue is full
+	 */
 	public void send(Message message, int destination) {
+		if (!trySend(message, destination)) {
+			throw new BackpressureException(destination, outbound.getDepth());
+		}
+	}
+
+	/**
+	 * Send a message to a destination unless its queue is full, i.e. it has
+	 * as many messages queued or unacknowledged as the configured depth
+	 *
+	 * @return false if the message was not sent because of backpressure
+	 */
+	public boolean trySend(Message message, int destination) {
 		if (!running) {
 			throw new IllegalStateException("AuthenticatedPerfectLink is not running");
 		}
@@ -69,31 +202,158 @@ public class AuthenticatedPerfectLink {
 			throw new IllegalArgumentException("Unknown destination process: " + destination);
 		}
 
-		// Sign the message
-		SignedMessage signedMessage = signMessage(message);
+		// Set up a session key with the destination if we don't have one yet
+		if (sessionKeys != null && sessionKeys.shouldHandshake(destination)) {
+			sendHandshake(destination);
+		}
 
-		// Store for potential retransmission
-		MessageId msgId;
+		byte[] payload = message.getPayload();
+		int chunkSize = config.getMaxDatagramSize() - frameOverhead - FragmentReassembler.HEADER_SIZE;
+		if (payload == null || payload.length <= chunkSize) {
+			if (!outbound.reserve(destination, 1)) {
+				metrics.recordBackpressure();
+				return false;
+			}
+			// Stamp the message with the link sequence number for this destination
+			sequencing.get(destination).incrementAndGet();
+			long sequenceNumber = nextSequence.get(destination).getAndIncrement();
+			sendLinkMessage(message.relabel(message.getType(), sequenceNumber, incarnation, payload), destination);
+			return true;
+		}
 
-		if (message.getType() == MessageType.DATA) {
-			// Extract consensus message type for DATA messages
-			ConsensusMessageType consensusType = extractConsensusType(message);
-			msgId = new MessageId(consensusType, message.getSequenceNumber(), selfId, destination);
-		} else {
-			// For ACK messages, use the basic constructor
-			msgId = new MessageId(message.getSequenceNumber(), selfId, destination);
+		if (payload.length > config.getMaxMessageSize()) {
+			throw new IllegalArgumentException("Message of " + payload.length + " bytes exceeds the maximum of "
+					+ config.getMaxMessageSize());
+		}
+
+		// Too big for one datagram: the fragments get consecutive sequence numbers
+		// and are acknowledged and retransmitted independently
+		List<byte[]> fragments = FragmentReassembler.split(payload, chunkSize);
+		if (fragments.size() > outbound.getDepth()) {
+			throw new IllegalArgumentException("Message needs " + fragments.size()
+					+ " fragments, more than the send queue depth of " + outbound.getDepth());
+		}
+		if (!outbound.reserve(destination, fragments.size())) {
+			metrics.recordBackpressure();
+			return false;
+		}
+		sequencing.get(destination).addAndGet(fragments.size());
+		long firstSequence = nextSequence.get(destination).getAndAdd(fragments.size());
+		for (int i = 0; i < fragments.size(); i++) {
+			sendLinkMessage(message.relabel(MessageType.FRAGMENT, firstSequence + i, incarnation, fragments.get(i)),
+					destination);
+		}
+		return true;
+	}
+
+	/**
+	 * Send a message to every other process. With RSA signatures the message
+	 * is signed once: a single BROADCAST frame carries the sequence number of
+	 * every destination and the same bytes go to all of them, each one
+	 * acknowledged and retransmitted independently. With session MACs, or a
+	 * message too large for one datagram, it is sent to each destination on
+	 * its own.
+	 *
+	 * @return Destinations the message was not sent to because their queue
+	 *         was full; empty if it went to every one
+	 */
+	public Set<Integer> broadcast(Message message) {
+		if (!running) {
+			throw new IllegalStateException("AuthenticatedPerfectLink is not running");
 		}
 
-		pendingAcks.put(msgId, message);
+		List<Integer> destinations = new ArrayList<>();
+		for (int processId : processes.keySet()) {
+			if (processId != selfId) {
+				destinations.add(processId);
+			}
+		}
 
-		// Send the message
-		sendSignedMessage(signedMessage, destination);
+		Set<Integer> refused = new TreeSet<>();
+		ByteBuffer payload = message.getPayloadBuffer();
+		int payloadLength = payload == null ? 0 : payload.remaining();
+		if (sessionKeys != null || destinations.size() < 2 || Message.broadcastSize(destinations.size(),
+				payloadLength) > config.getMaxDatagramSize() - frameOverhead) {
+			for (int destination : destinations) {
+				if (!trySend(message, destination)) {
+					refused.add(destination);
+				}
+			}
+			return refused;
+		}
+
+		Map<Integer, Long> sequenceNumbers = new LinkedHashMap<>();
+		for (int destination : destinations) {
+			if (outbound.reserve(destination, 1)) {
+				sequencing.get(destination).incrementAndGet();
+				sequenceNumbers.put(destination, nextSequence.get(destination).getAndIncrement());
+			} else {
+				metrics.recordBackpressure();
+				refused.add(destination);
+			}
+		}
+		if (sequenceNumbers.isEmpty()) {
+			return refused;
+		}
+
+		// The destination only selects a session key, and there are none here
+		Message broadcastMessage = message.relabel(MessageType.BROADCAST, 0, incarnation,
+				Message.encodeBroadcast(sequenceNumbers, payload));
+		byte[] frame = encodeFrame(broadcastMessage, destinations.get(0));
+
+		for (Map.Entry<Integer, Long> entry : sequenceNumbers.entrySet()) {
+			int destination = entry.getKey();
+			PendingFrame pending = new PendingFrame(destination,
+					message.relabel(message.getType(), entry.getValue(), incarnation, message.getPayload()));
+			pending.frame = frame;
+			pendingAcks.get(destination).put(entry.getValue(), pending);
+			sequencing.get(destination).decrementAndGet();
+			sendFrame(frame, destination);
+			scheduleRetransmission(pending);
+		}
+		return refused;
+	}
+
+	/**
+	 * Send a sequenced message and keep it for retransmission until the
+	 * destination acknowledges it. Its sequence number was counted in
+	 * {@code sequencing} when it was taken.
+	 */
+	private void sendLinkMessage(Message linkMessage, int destination) {
+		PendingFrame pending = new PendingFrame(destination, linkMessage);
+		pendingAcks.get(destination).put(linkMessage.getSequenceNumber(), pending);
+		sequencing.get(destination).decrementAndGet();
+
+		// Piggyback the ACK we owe the destination, if any
+		Message owedAck = owedAcks.remove(destination);
+
+		// Send the message, on its own or coalesced with others for the destination
+		if (batcher != null) {
+			batcher.enqueue(destination, linkMessage, linkMessage.batchedSize());
+			if (owedAck != null) {
+				batcher.enqueue(destination, owedAck, owedAck.batchedSize());
+			}
+		} else if (owedAck != null && Integer.BYTES + linkMessage.batchedSize()
+				+ owedAck.batchedSize() <= config.getMaxDatagramSize() - frameOverhead) {
+			flushBatch(destination, List.of(linkMessage, owedAck));
+		} else {
+			sendFrame(signedFrame(pending), destination);
+			if (owedAck != null) {
+				// No room to piggyback it
+				sendFrame(encodeFrame(owedAck, destination), destination);
+			}
+		}
+		scheduleRetransmission(pending);
 	}
 
 	public void registerDeliverCallback(DeliverCallback callback) {
 		this.deliverCallback = callback;
 	}
 
+	public void registerCapacityCallback(CapacityCallback callback) {
+		this.capacityCallback = callback;
+	}
+
 	public void start() {
 		if (running) {
 			return;
@@ -101,48 +361,53 @@ public class AuthenticatedPerfectLink {
 
 		running = true;
 
-		// Start receiving thread
-		executor.submit(this::receiveLoop);
+		// Before receiving, so the first frames do not wait for the MBean server
+		if (config.isJmx()) {
+			metrics.register();
+		}
 
-		// Start acknowledgment checking and retransmission
-		// executor.submit(this::retransmissionLoop);
+		// Start receiving
+		try {
+			transport.start(this::onFrame);
+		} catch (IOException e) {
+			running = false;
+			throw new IllegalStateException("Failed to start transport: " + e.getMessage(), e);
+		}
+
+		outbound.start();
+
+		// Start retransmission, delayed acknowledgments and reassembly deadlines
+		timer.start();
 	}
 
 	public void stop() {
 		running = false;
-		executor.shutdown();
-		socket.close();
+		timer.stop();
+		outbound.stop();
+		if (batcher != null) {
+			batcher.shutdown();
+		}
+		transport.close();
+		if (verificationPipeline != null) {
+			verificationPipeline.shutdown();
+		}
+		metrics.unregister();
 	}
 
 	/**
-	 * Main receive loop
+	 * Counters and latency histograms of this link, also exposed through JMX
 	 */
-	private void receiveLoop() {
-		byte[] buffer = new byte[8196]; // Create buffer once outside the loop
-
-		while (running) {
-			try {
-				// Reuse the same buffer for each packet
-				DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-				socket.receive(packet); // This blocks until a packet is received
-
-				// Important: Create a copy of the data to process
-				byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
-
-				// Process the copied data, not the original buffer
-				SignedMessage signedMessage = SignedMessage.deserialize(data);
-				processIncomingMessage(signedMessage);
+	public LinkMetrics getMetrics() {
+		return metrics;
+	}
 
-			} catch (IOException e) {
-				if (running) {
-					System.err.println("Error receiving UDP packet: " + e.getMessage());
-				}
-			} catch (Exception e) {
-				System.err.println("Error processing incoming message. Trying to understand it as a client message... "
-						+ e.getMessage());
-				e.printStackTrace();
-			}
-		}
+	/**
+	 * Called by the transport for every frame received
+	 */
+	private void onFrame(byte[] frame) {
+		SignedMessage signedMessage = SignedMessage.deserialize(frame);
+		metrics.recordIn(signedMessage.getSenderId(), frame.length);
+		processIncomingMessage(signedMessage);
 	}
 
 	/**
@@ -157,52 +422,101 @@ public class AuthenticatedPerfectLink {
 			return;
 		}
 
-		// Get sender's public key
-		PublicKey senderPublicKey = processes.get(senderId).getPublicKey();
+		// Verify on the worker pool; verified messages come back in per-sender order
+		if (verificationPipeline != null) {
+			verificationPipeline.submit(signedMessage);
+			return;
+		}
 
 		// Verify signature
-		if (!verifySignature(signedMessage, senderPublicKey)) {
+		if (!verifySignature(signedMessage)) {
 			System.err.println("Invalid signature on message from sender: " + senderId);
 			return;
 		}
 
+		handleVerifiedMessage(signedMessage);
+	}
+
+	/**
+	 * Handle a message whose signature has already been checked
+	 */
+	private void handleVerifiedMessage(SignedMessage signedMessage) {
+		int senderId = signedMessage.getSenderId();
 		Message message = signedMessage.getMessage();
 
-		// Create a MessageId based on message type
-		MessageId msgId;
+		if (message.getType() == MessageType.BATCH) {
+			// The batch was authenticated as a whole; handle what it carries
+			for (Message inner : Message.decodeBatch(message.getPayloadBuffer())) {
+				if (inner.getType() == MessageType.DATA || inner.getType() == MessageType.ACK
+						|| inner.getType() == MessageType.FRAGMENT) {
+					handleMessage(inner, senderId);
+				}
+			}
+			return;
+		}
 
-		if (message.getType() == MessageType.DATA) {
-			// Extract consensus message type for DATA messages
-			ConsensusMessageType consensusType = extractConsensusType(message);
-			msgId = new MessageId(consensusType, message.getSequenceNumber(), senderId, selfId);
-		} else {
-			// For ACK messages, use the basic constructor
-			msgId = new MessageId(message.getSequenceNumber(), senderId, selfId);
+		if (message.getType() == MessageType.BROADCAST) {
+			// Signed once for every destination; take the part addressed to us
+			Message data = message.unwrapBroadcast(selfId);
+			if (data != null) {
+				handleMessage(data, senderId);
+			}
+			return;
 		}
 
+		handleMessage(message, senderId);
+	}
+
+	/**
+	 * Handle an authenticated link message
+	 */
+	private void handleMessage(Message message, int senderId) {
 		System.out.println("AUTH - processIncomingMessage - type: " + message.getType()
-				+ (message.getType() == MessageType.DATA ? " consensus type: " + extractConsensusType(message) : "")
-				+ " with sequencenumber: " + msgId.sequenceNumber);
+				+ (message.getConsensusType() != null ? " consensus type: " + message.getConsensusType() : "")
+				+ " with sequencenumber: " + message.getSequenceNumber());
 
 		// Handle different message types
 		switch (message.getType()) {
 			case DATA:
-				// If this is a new message (including consensus type), deliver it and send ACK
-				if (delivered.add(msgId)) {
-					if (deliverCallback != null) {
-						deliverCallback.onDeliver(message, senderId);
-					}
+				DeliveryWindow.Result result = delivered.get(senderId).mark(message.getIncarnation(),
+						message.getSequenceNumber());
+
+				// If this is a new message, deliver it and send ACK
+				if (result == DeliveryWindow.Result.NEW && deliverCallback != null) {
+					deliverCallback.onDeliver(message, senderId);
+				} else if (result == DeliveryWindow.Result.DUPLICATE) {
+					metrics.recordDuplicate();
+				}
+				// Always acknowledge, even duplicates. Messages beyond the window
+				// are left out of the ACK so the sender retransmits them later,
+				// and the ACK shows the sender if this process fell behind
+				if (result != DeliveryWindow.Result.STALE) {
+					acknowledge(senderId);
 				}
-				// Always send ACK, even for duplicates
-				sendAcknowledgment(message, senderId);
+				break;
+
+			case SYNC:
+				delivered.get(senderId).skipTo(message.getIncarnation(), message.getSequenceNumber());
+				acknowledge(senderId);
+				break;
+
+			case FRAGMENT:
+				handleFragment(message, senderId);
 				break;
 
 			case ACK:
-				// Remove from pending acknowledgments
-				// For ACK messages, we need to reconstruct the original message ID
-				// This depends on how you're tracking sent messages
-				MessageId originalMsgId = new MessageId(message.getAckSequenceNumber(), selfId, senderId);
-				pendingAcks.remove(originalMsgId);
+				if (message.getPayloadBuffer() == null) {
+					// Plain ACK of a session handshake
+					if (sessionKeys != null) {
+						sessionKeys.onAck(senderId, message.getAckSequenceNumber());
+					}
+				} else {
+					handleCumulativeAck(message, senderId);
+				}
+				break;
+
+			case HANDSHAKE:
+				handleHandshake(message, senderId);
 				break;
 
 			default:
@@ -211,179 +525,479 @@ public class AuthenticatedPerfectLink {
 	}
 
 	/**
-	 * Send an acknowledgment for a received message
+	 * Record a fragment and deliver its message once all fragments arrived.
+	 * Fragments the reassembly buffer has no room for are not acknowledged, so
+	 * the sender retransmits them later.
+	 */
+	private void handleFragment(Message fragment, int senderId) {
+		FragmentReassembler reassembler = reassembly.get(senderId);
+		ByteBuffer payload = fragment.getPayloadBuffer();
+		if (!reassembler.admits(fragment.getIncarnation(), fragment.getSequenceNumber(), payload)) {
+			return;
+		}
+
+		DeliveryWindow.Result result = delivered.get(senderId).mark(fragment.getIncarnation(),
+				fragment.getSequenceNumber());
+
+		if (result == DeliveryWindow.Result.NEW) {
+			byte[] whole = reassembler.add(fragment.getIncarnation(), fragment.getSequenceNumber(), payload);
+			if (whole != null && deliverCallback != null) {
+				long firstSequence = FragmentReassembler.firstSequence(fragment.getSequenceNumber(), payload);
+				deliverCallback.onDeliver(fragment.relabel(MessageType.DATA, firstSequence, fragment.getIncarnation(),
+						whole), senderId);
+			}
+		} else if (result == DeliveryWindow.Result.DUPLICATE) {
+			metrics.recordDuplicate();
+		}
+		if (result != DeliveryWindow.Result.STALE) {
+			acknowledge(senderId);
+		}
+	}
+
+	/**
+	 * Send an acknowledgment for a received handshake
 	 */
 	private void sendAcknowledgment(Message receivedMsg, int destination) {
 		Message ackMessage = new Message(MessageType.ACK, receivedMsg.getSequenceNumber(), // Set as ackSequenceNumber
 				null // No payload for ACK
 		);
-		SignedMessage signedAck = signMessage(ackMessage);
-		sendSignedMessage(signedAck, destination);
+		sendAck(ackMessage, destination);
 	}
 
 	/**
-	 * Retransmission loop for reliable delivery
+	 * Acknowledge everything delivered from a peer so far. The ACK carries the
+	 * peer's incarnation, its low watermark as the cumulative sequence number
+	 * and a bitmap of what was delivered above it. It is sent after a short
+	 * delay, unless outgoing DATA to the peer picks it up first; a newer ACK
+	 * replaces an unsent one since it covers at least as much. The timer only
+	 * queues it: it is signed on the sender thread.
 	 */
-	private void retransmissionLoop() {
-		while (running) {
-			try {
-				// Check all pending messages
-				for (Map.Entry<MessageId, Message> entry : pendingAcks.entrySet()) {
-					MessageId msgId = entry.getKey();
-					Message message = entry.getValue();
+	private void acknowledge(int peer) {
+		DeliveryWindow window = delivered.get(peer);
+		Message ackMessage = new Message(MessageType.ACK, window.getLowWatermark(), window.getIncarnation(),
+				window.selectiveAcks(SACK_WORDS));
 
-					// Retransmit
-					SignedMessage signedMessage = signMessage(message);
-					sendSignedMessage(signedMessage, msgId.getDestination());
-				}
+		if (config.getAckDelayMs() == 0) {
+			sendAck(ackMessage, peer);
+			return;
+		}
 
-				// Sleep before next retransmission cycle
-				Thread.sleep(1000); // 1 second, adjust as needed
+		if (owedAcks.put(peer, ackMessage) == null) {
+			timer.schedule(() -> sendFrameLater(peer, () -> {
+				Message owed = owedAcks.remove(peer);
+				return owed != null && running ? encodeFrame(owed, peer) : null;
+			}), config.getAckDelayMs());
+		}
+	}
 
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
-				break;
-			} catch (Exception e) {
-				System.err.println("Error in retransmission loop: " + e.getMessage());
+	private void sendAck(Message ackMessage, int destination) {
+		if (batcher != null) {
+			batcher.enqueue(destination, ackMessage, ackMessage.batchedSize());
+			return;
+		}
+
+		sendFrame(encodeFrame(ackMessage, destination), destination);
+	}
+
+	/**
+	 * Clear every pending frame a cumulative ACK covers: all sequence numbers
+	 * up to its low watermark, plus those set in its bitmap
+	 */
+	private void handleCumulativeAck(Message ackMessage, int senderId) {
+		if (ackMessage.getIncarnation() != incarnation) {
+			return; // Acknowledges what a previous run of this process sent
+		}
+
+		ConcurrentNavigableMap<Long, PendingFrame> pending = pendingAcks.get(senderId);
+		long cumulative = ackMessage.getAckSequenceNumber();
+		PendingFrame newest = null;
+		int acknowledged = 0;
+
+		Map.Entry<Long, PendingFrame> first;
+		while ((first = pending.firstEntry()) != null && first.getKey() <= cumulative) {
+			if (pending.remove(first.getKey(), first.getValue())) {
+				newest = onAcknowledged(first.getValue(), newest);
+				acknowledged++;
 			}
 		}
+
+		ByteBuffer bitmap = ackMessage.getPayloadBuffer();
+		for (long base = cumulative + 1; bitmap.remaining() >= Long.BYTES; base += 64) {
+			long word = bitmap.getLong();
+			while (word != 0) {
+				int bit = Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+				PendingFrame acked = pending.remove(base + bit);
+				if (acked != null) {
+					newest = onAcknowledged(acked, newest);
+					acknowledged++;
+				}
+			}
+		}
+		outbound.release(senderId, acknowledged);
+		CapacityCallback capacity = capacityCallback;
+		if (acknowledged > 0 && capacity != null) {
+			capacity.onCapacity(senderId);
+		}
+
+		// One RTT sample per ACK, from the most recent frame it covers
+		if (newest != null) {
+			long rttMs = (System.nanoTime() - newest.firstSentNanos) / 1_000_000;
+			rttEstimators.get(senderId).sample(rttMs);
+		}
+
+		resyncIfBehind(senderId, cumulative);
 	}
 
 	/**
-	 * Schedule periodic retransmission of a message
+	 * Send a SYNC to a peer whose ACK is below the numbers we no longer
+	 * retransmit to it, which happens when it restarted and we did not: it
+	 * would otherwise wait for them forever and leave everything beyond its
+	 * window unacknowledged. At most one SYNC per retransmission timeout.
 	 */
-	private void scheduleRetransmission(MessageId msgId, int destination) {
-		// The actual retransmission is handled by the retransmissionLoop
+	private void resyncIfBehind(int peer, long cumulative) {
+		long next = nextSequence.get(peer).get();
+		if (sequencing.get(peer).get() != 0) {
+			// A number below next may not be pending yet: try again on a later ACK
+			return;
+		}
+		Map.Entry<Long, PendingFrame> lowest = pendingAcks.get(peer).firstEntry();
+		long floor = (lowest != null ? Math.min(lowest.getKey(), next) : next) - 1;
+		if (cumulative >= floor) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		Long last = lastSync.get(peer);
+		if (last != null && now - last < TimeUnit.MILLISECONDS.toNanos(rttEstimators.get(peer).getRtoMs())) {
+			return;
+		}
+		lastSync.put(peer, now);
+		sendFrame(encodeFrame(new Message(MessageType.SYNC, floor, incarnation, null), peer), peer);
 	}
 
 	/**
-	 * Sign a message using this process's private key
+	 * Send the messages the batcher collected for a destination as one frame
 	 */
-	private SignedMessage signMessage(Message message) {
+	private void flushBatch(int destination, List<Message> messages) {
+		if (!running) {
+			return;
+		}
+
+		Message frameMessage = messages.size() == 1
+				? messages.get(0)
+				: new Message(MessageType.BATCH, 0, incarnation, Message.encodeBatch(messages));
+		sendFrame(encodeFrame(frameMessage, destination), destination);
+	}
+
+	/**
+	 * Send a new session key to a peer. The handshake is not retransmitted:
+	 * until the peer acknowledges it messages stay RSA-signed, and the next send
+	 * to that peer triggers a new attempt.
+	 */
+	private void sendHandshake(int destination) {
 		try {
-			Signature signature = Signature.getInstance("SHA256withRSA");
-			signature.initSign(privateKey);
-			signature.update(message.serialize());
+			byte[] payload = sessionKeys.newHandshake(destination, processes.get(destination).getPublicKey());
+			Message handshake = new Message(MessageType.HANDSHAKE, SessionKeyManager.handshakeEpoch(payload),
+					payload);
+			sendFrame(encodeFrame(handshake, destination), destination);
+		} catch (RuntimeException e) {
+			System.err.println("Error sending session handshake to " + destination + ": " + e.getMessage());
+		}
+	}
 
-			byte[] signatureBytes = signature.sign();
-			return new SignedMessage(message, signatureBytes, selfId);
+	/**
+	 * Ask a peer whose MACs no longer verify (e.g. because we restarted) to
+	 * send a new session key. The request ID in the sequence number keeps the
+	 * request from being replayed.
+	 */
+	private void requestRekey(int destination) {
+		Message request = new Message(MessageType.HANDSHAKE, sessionKeys.newRekeyRequest(), null);
+		sendFrame(encodeFrame(request, destination), destination);
+	}
 
-		} catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException e) {
-			throw new RuntimeException("Failed to sign message: " + e.getMessage(), e);
+	/**
+	 * Handle a session key from a peer, or its request for a new key from us
+	 */
+	private void handleHandshake(Message message, int senderId) {
+		if (sessionKeys == null) {
+			return;
+		}
+
+		if (message.getPayloadBuffer() == null) {
+			if (!sessionKeys.acceptRekeyRequest(senderId, message.getSequenceNumber())) {
+				// Replayed, or too soon after the last one
+				return;
+			}
+			sessionKeys.resetOutbound(senderId);
+			sendHandshake(senderId);
+			return;
+		}
+
+		if (sessionKeys.acceptHandshake(senderId, message.getPayload())) {
+			sendAcknowledgment(message, senderId);
 		}
 	}
 
 	/**
-	 * Verify the signature on a signed message
+	 * Arm the retransmission timer of a pending frame, backing off
+	 * exponentially with the number of times it has been sent
 	 */
-	private boolean verifySignature(SignedMessage signedMessage, PublicKey publicKey) {
-		try {
-			Signature signature = Signature.getInstance("SHA256withRSA");
-			signature.initVerify(publicKey);
-			signature.update(signedMessage.getMessage().serialize());
+	private void scheduleRetransmission(PendingFrame pending) {
+		if (!config.isRetransmission()) {
+			return;
+		}
 
-			return signature.verify(signedMessage.getSignature());
+		long timeout = rttEstimators.get(pending.destination).timeoutFor(pending.attempts - 1);
+		pending.timeout = timer.schedule(() -> retransmit(pending), timeout);
+	}
 
-		} catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException e) {
-			System.err.println("Error verifying signature: " + e.getMessage());
-			return false;
+	/**
+	 * Timer callback: queue the cached frame again if it is still
+	 * unacknowledged. A frame first sent in a batch has no cached frame of its
+	 * own yet, and is signed on the sender thread.
+	 */
+	private void retransmit(PendingFrame pending) {
+		long sequenceNumber = pending.message.getSequenceNumber();
+		if (!running || pendingAcks.get(pending.destination).get(sequenceNumber) != pending) {
+			return;
 		}
+
+		pending.attempts++;
+		metrics.recordRetransmission();
+		sendFrameLater(pending.destination, () -> pendingAcks.get(pending.destination).get(sequenceNumber) == pending
+				? signedFrame(pending)
+				: null);
+		scheduleRetransmission(pending);
+	}
+
+	/**
+	 * Signed bytes of a pending message on its own, created on first use and
+	 * reused by every retransmission
+	 */
+	private byte[] signedFrame(PendingFrame pending) {
+		byte[] frame = pending.frame;
+		if (frame == null) {
+			frame = encodeFrame(pending.message, pending.destination);
+			pending.frame = frame;
+		}
+		return frame;
 	}
 
 	/**
-	 * Send a signed message over UDP
+	 * Stop retransmitting an acknowledged frame
+	 *
+	 * @param newest Most recently sent frame acknowledged so far that is usable
+	 *               as an RTT sample, or null
+	 * @return The frame to sample after this one
 	 */
-	private void sendSignedMessage(SignedMessage signedMessage, int destination) {
+	private PendingFrame onAcknowledged(PendingFrame pending, PendingFrame newest) {
+		if (pending.timeout != null) {
+			pending.timeout.cancel();
+		}
+
+		// Karn's algorithm: an ACK for a retransmitted frame is ambiguous
+		if (pending.attempts == 1 && (newest == null || pending.firstSentNanos > newest.firstSentNanos)) {
+			return pending;
+		}
+		return newest;
+	}
+
+	/**
+	 * Build the authenticated frame of a message for a destination: with the
+	 * session key shared with it when one is established, otherwise with this
+	 * process's private key
+	 */
+	private byte[] encodeFrame(Message message, int destination) {
+		long started = System.nanoTime();
+		long[] signNanos = new long[1];
+		byte[] frame = null;
+
+		if (sessionKeys != null && message.getType() != MessageType.HANDSHAKE
+				&& sessionKeys.hasOutboundKey(destination)) {
+			frame = SignedMessage.encode(message, selfId, SignedMessage.AuthType.MAC, SessionKeyManager.TAG_LENGTH,
+					content -> timed(signNanos, () -> sessionKeys.tag(destination, content)));
+			// null if the key was dropped meanwhile; fall back to a signature
+		}
+
+		if (frame == null) {
+			frame = SignedMessage.encode(message, selfId, SignedMessage.AuthType.SIGNATURE, signatureLength,
+					content -> timed(signNanos, () -> {
+						try {
+							Signature signature = Signature.getInstance("SHA256withRSA");
+							signature.initSign(privateKey);
+							signature.update(content);
+							return signature.sign();
+
+						} catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException e) {
+							throw new RuntimeException("Failed to sign message: " + e.getMessage(), e);
+						}
+					}));
+		}
+
+		metrics.recordSign(signNanos[0]);
+		metrics.recordSerialize(System.nanoTime() - started - signNanos[0]);
+		return frame;
+	}
+
+	/**
+	 * Run a signer, adding the time it took to {@code elapsed[0]}
+	 */
+	private static byte[] timed(long[] elapsed, Supplier<byte[]> signer) {
+		long started = System.nanoTime();
 		try {
-			ProcessInfo destInfo = processes.get(destination);
-			byte[] data = signedMessage.serialize();
+			return signer.get();
+		} finally {
+			elapsed[0] += System.nanoTime() - started;
+		}
+	}
 
-			DatagramPacket packet = new DatagramPacket(data, data.length, InetAddress.getByName(destInfo.getHost()),
-					destInfo.getPort());
+	/**
+	 * Verify the signature (or session MAC) on a signed message
+	 */
+	private boolean verifySignature(SignedMessage signedMessage) {
+		long started = System.nanoTime();
+
+		// A retransmitted copy of an RSA-signed frame costs one hash instead
+		// of another verification; MACs are as cheap as the hash already
+		ByteBuffer key = null;
+		if (verifiedFrames != null && signedMessage.getAuthType() == SignedMessage.AuthType.SIGNATURE) {
+			key = verifiedFrames.key(signedMessage);
+			if (verifiedFrames.contains(key)) {
+				metrics.recordVerifyCacheHit();
+				return true;
+			}
+		}
 
-			socket.send(packet);
+		boolean valid = checkSignature(signedMessage);
+		metrics.recordVerify(System.nanoTime() - started);
 
-		} catch (IOException e) {
-			System.err.println("Error sending UDP packet: " + e.getMessage());
+		if (!valid) {
+			metrics.recordInvalidFrame();
+		} else if (key != null) {
+			verifiedFrames.add(key);
 		}
+		return valid;
 	}
 
-	private ConsensusMessageType extractConsensusType(Message message) {
-		if (message.getType() != MessageType.DATA || message.getPayload() == null) {
-			return null;
+	private boolean checkSignature(SignedMessage signedMessage) {
+		int senderId = signedMessage.getSenderId();
+
+		if (signedMessage.getAuthType() == SignedMessage.AuthType.MAC) {
+			// Handshakes must carry a transferable RSA signature
+			if (sessionKeys == null || signedMessage.getMessage().getType() == MessageType.HANDSHAKE) {
+				return false;
+			}
+
+			boolean valid = sessionKeys.verify(senderId, signedMessage.getSignedContent(),
+					signedMessage.getSignature());
+			if (!valid && sessionKeys.shouldRequestRekey(senderId)) {
+				requestRekey(senderId);
+			}
+			return valid;
 		}
 
 		try {
-			// Extract ConsensusMessage from the payload
-			ConsensusMessage consensusMsg = ConsensusMessage.deserialize(message.getPayload());
-			return consensusMsg.getType();
-		} catch (Exception e) {
-			System.err.println("Failed to extract consensus type: " + e.getMessage());
-			return null;
+			PublicKey publicKey = processes.get(senderId).getPublicKey();
+			Signature signature = Signature.getInstance("SHA256withRSA");
+			signature.initVerify(publicKey);
+			signature.update(signedMessage.getSignedContent());
+
+			return signature.verify(signedMessage.getSignature());
+
+		} catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException e) {
+			System.err.println("Error verifying signature: " + e.getMessage());
+			return false;
 		}
 	}
 
 	/**
-	 * Class to identify a message uniquely
+	 * Send an already serialized signed message over the transport
 	 */
-	private static class MessageId {
-		private final MessageType messageType;
-		private final ConsensusMessageType consensusPhase;
-		private final long sequenceNumber;
-		private final int sender;
-		private final int destination;
+	private void sendFrame(byte[] data, int destination) {
+		metrics.recordOut(destination, data.length);
+		outbound.enqueue(destination, data);
+	}
 
-		// Constructor for consensus messages
-		public MessageId(long sequenceNumber, int sender, int destination) {
-			this.messageType = null; // Consensus messages are DATA messages
-			this.consensusPhase = null;
-			this.sequenceNumber = sequenceNumber;
-			this.sender = sender;
-			this.destination = destination;
+	/**
+	 * Queue a frame that is built, and signed, on the sender thread
+	 *
+	 * @param frame Builds the frame, or returns null if it is no longer needed
+	 */
+	private void sendFrameLater(int destination, Supplier<byte[]> frame) {
+		outbound.enqueue(destination, () -> {
+			byte[] data = frame.get();
+			if (data != null) {
+				metrics.recordOut(destination, data.length);
+			}
+			return data;
+		});
+	}
+
+	/**
+	 * Create the transport selected in the config, bound to the given port
+	 */
+	private static Transport createTransport(Map<Integer, ProcessInfo> processes, int selfId, int port,
+			LinkConfig config) throws IOException {
+		ProcessInfo self = processes.get(selfId);
+		switch (config.getTransportMode()) {
+			case NIO:
+				BufferPool bufferPool = new BufferPool(config.getMaxDatagramSize(), config.getBufferPoolSize());
+				return new NioDatagramTransport(port, config.getIoThreads(), bufferPool);
+
+			case LOOPBACK:
+				LoopbackNetwork network = config.getLoopbackNetwork() != null ? config.getLoopbackNetwork()
+						: LoopbackNetwork.getDefault();
+				return network.bind(new InetSocketAddress(self.getHost(), port));
+
+			case TCP:
+				List<InetSocketAddress> peers = new ArrayList<>();
+				for (ProcessInfo process : processes.values()) {
+					peers.add(new InetSocketAddress(process.getHost(), process.getPort()));
+				}
+				return new TcpTransport(port, config.getMaxDatagramSize(), peers);
+
+			default:
+				return new UdpTransport(port, config.getMaxDatagramSize());
 		}
+	}
+
+	/**
+	 * Thrown by {@link AuthenticatedPerfectLink#send} when the destination
+	 * already has as many messages queued or unacknowledged as the configured
+	 * depth, typically because it is slow or unreachable
+	 */
+	public static class BackpressureException extends IllegalStateException {
+		private static final long serialVersionUID = 1L;
+
+		private final int destination;
 
-		// Constructor for consensus messages
-		public MessageId(ConsensusMessageType consensusPhase, long sequenceNumber, int sender, int destination) {
-			this.messageType = MessageType.DATA; // Consensus messages are DATA messages
-			this.consensusPhase = consensusPhase;
-			this.sequenceNumber = sequenceNumber;
-			this.sender = sender;
+		public BackpressureException(int destination, int depth) {
+			super("Send queue to process " + destination + " is full (" + depth + " messages)");
 			this.destination = destination;
 		}
 
 		public int getDestination() {
 			return destination;
 		}
+	}
 
-		@Override
-		public boolean equals(Object o) {
-			if (this == o)
-				return true;
-			if (o == null || getClass() != o.getClass())
-				return false;
-
-			MessageId messageId = (MessageId) o;
-
-			if (sequenceNumber != messageId.sequenceNumber)
-				return false;
-			if (sender != messageId.sender)
-				return false;
-			if (destination != messageId.destination)
-				return false;
-			// For ACK messages, we only compare the above fields
-			if (messageType == MessageType.ACK && messageId.messageType == MessageType.ACK)
-				return true;
-			// For DATA messages, also compare the consensus phase
-			return consensusPhase == messageId.consensusPhase;
-		}
+	/**
+	 * A sent frame waiting for its acknowledgment
+	 */
+	private static class PendingFrame {
+		private final int destination;
+		private final Message message;
+		private final long firstSentNanos;
+		private volatile byte[] frame; // Signed bytes, reused by every retransmission
+		private volatile int attempts;
+		private volatile HashedTimerWheel.Timeout timeout;
 
-		@Override
-		public int hashCode() {
-			int result = messageType == MessageType.ACK ? 0 : (consensusPhase != null ? consensusPhase.hashCode() : 0);
-			result = 31 * result + (int) (sequenceNumber ^ (sequenceNumber >>> 32));
-			result = 31 * result + sender;
-			result = 31 * result + destination;
-			return result;
+		private PendingFrame(int destination, Message message) {
+			this.destination = destination;
+			this.message = message;
+			this.firstSentNanos = System.nanoTime();
+			this.attempts = 1;
 		}
 	}
 }
@@ -0,0 +1,84 @@
+package communication;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of direct byte buffers of a fixed size.
+ *
+ * Buffers are handed out cleared and must be given back with {@link #release}
+ * once their content has been consumed. When the pool is empty a new buffer is
+ * allocated, up to {@code maxBuffers} in use at once, and buffers released
+ * into a full pool are dropped for the GC.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final BlockingQueue<ByteBuffer> free;
+    private final AtomicInteger allocated; // Buffers in the pool or handed out
+
+    /**
+     * Constructor, allowing twice as many buffers in use as kept idle
+     *
+     * @param bufferSize Capacity of every buffer in the pool
+     * @param capacity   Maximum number of idle buffers kept around
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        this(bufferSize, capacity, 2 * Math.max(1, capacity));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param bufferSize Capacity of every buffer in the pool
+     * @param capacity   Maximum number of idle buffers kept around
+     * @param maxBuffers Maximum number of buffers allocated at once, idle or in use
+     */
+    public BufferPool(int bufferSize, int capacity, int maxBuffers) {
+        if (maxBuffers < capacity) {
+            throw new IllegalArgumentException("maxBuffers must be at least the capacity");
+        }
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+        this.free = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.allocated = new AtomicInteger(capacity);
+
+        for (int i = 0; i < capacity; i++) {
+            free.offer(ByteBuffer.allocateDirect(bufferSize));
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Take a cleared buffer from the pool, allocating one if none is idle
+     *
+     * @return null if none is idle and {@code maxBuffers} are already in use
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            if (allocated.incrementAndGet() > maxBuffers) {
+                allocated.decrementAndGet();
+                return null;
+            }
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.isDirect() && buffer.capacity() == bufferSize && !free.offer(buffer)) {
+            allocated.decrementAndGet();
+        }
+    }
+}
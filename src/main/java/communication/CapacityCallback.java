@@ -0,0 +1,11 @@
+package communication;
+
+public interface CapacityCallback {
+    /**
+     * Called when the send queue to a destination has room again after
+     * messages to it were acknowledged
+     *
+     * @param destination The destination process id
+     */
+    void onCapacity(int destination);
+}
@@ -15,11 +15,17 @@ import java.util.Map;
  */
 public class ConsensusMessage {
     private final ConsensusMessageType type;
+    private final int view; // View of the sender, which names the leader it follows
     private final Object payload;
     private byte[] signature;
 
     public ConsensusMessage(ConsensusMessageType type, Object payload) {
+        this(type, 0, payload);
+    }
+
+    public ConsensusMessage(ConsensusMessageType type, int view, Object payload) {
         this.type = type;
+        this.view = view;
         this.payload = payload;
     }
 
@@ -27,6 +33,10 @@ public class ConsensusMessage {
         return type;
     }
 
+    public int getView() {
+        return view;
+    }
+
     public Object getPayload() {
         return payload;
     }
@@ -47,8 +57,9 @@ public class ConsensusMessage {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             DataOutputStream dos = new DataOutputStream(baos);
 
-            // Write message type
+            // Write message type and view
             dos.writeInt(type.ordinal());
+            dos.writeInt(view);
 
             // Write payload content
             byte[] payloadBytes = serializePayload();
@@ -126,6 +137,19 @@ public class ConsensusMessage {
             if (hasValue) {
                 dos.writeUTF(decideMsg.getValue());
             }
+        } else if (payload instanceof PayloadMessage payloadMsg) {
+            dos.writeInt(payloadMsg.getInstance());
+            dos.writeUTF(payloadMsg.getValue());
+        } else if (payload instanceof FetchMessage fetchMsg) {
+            dos.writeInt(fetchMsg.getInstance());
+            dos.writeUTF(fetchMsg.getDigest());
+        } else if (payload instanceof ViewChangeMessage viewChangeMsg) {
+            dos.writeInt(viewChangeMsg.getView());
+            dos.writeInt(viewChangeMsg.getLastDelivered());
+            dos.writeInt(viewChangeMsg.getHighestInstance());
+        } else if (payload instanceof NewViewMessage newViewMsg) {
+            dos.writeInt(newViewMsg.getFromInstance());
+            dos.writeInt(newViewMsg.getToInstance());
         } else if (payload instanceof CollectMessage collectMsg) {
             dos.writeInt(collectMsg.getInstance());
 
@@ -179,8 +203,9 @@ public class ConsensusMessage {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             DataOutputStream dos = new DataOutputStream(baos);
 
-            // Write message type
+            // Write message type and view
             dos.writeInt(type.ordinal());
+            dos.writeInt(view);
 
             // Write payload data
             byte[] payloadBytes = serializePayload();
@@ -210,8 +235,9 @@ public class ConsensusMessage {
             ByteArrayInputStream bais = new ByteArrayInputStream(data);
             DataInputStream dis = new DataInputStream(bais);
 
-            // Read message type
+            // Read message type and view
             ConsensusMessageType type = ConsensusMessageType.values()[dis.readInt()];
+            int view = dis.readInt();
 
             // Read payload
             int payloadLength = dis.readInt();
@@ -222,7 +248,7 @@ public class ConsensusMessage {
             Object payload = deserializePayload(type, payloadBytes);
 
             // Create message
-            ConsensusMessage message = new ConsensusMessage(type, payload);
+            ConsensusMessage message = new ConsensusMessage(type, view, payload);
 
             // Read signature
             int signatureLength = dis.readInt();
@@ -322,6 +348,14 @@ public class ConsensusMessage {
                 yield new DecideMessage(decideInstance, decideValue);
             }
 
+            case PAYLOAD -> new PayloadMessage(dis.readInt(), dis.readUTF());
+
+            case FETCH -> new FetchMessage(dis.readInt(), dis.readUTF());
+
+            case VIEW_CHANGE -> new ViewChangeMessage(dis.readInt(), dis.readInt(), dis.readInt());
+
+            case NEW_VIEW -> new NewViewMessage(dis.readInt(), dis.readInt());
+
             case COLLECT -> {
                 int collectInstance = dis.readInt();
 
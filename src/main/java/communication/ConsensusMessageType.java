@@ -9,5 +9,9 @@ public enum ConsensusMessageType {
     COLLECT,
     WRITE,
     ACK,
-    DECIDE
+    DECIDE,
+    PAYLOAD, // Value disseminated once when the phases agree on its digest
+    FETCH, // Request for the value behind a digest
+    VIEW_CHANGE, // Vote to move to the next leader
+    NEW_VIEW // New leader taking over the instances in flight
 }
\ No newline at end of file
@@ -0,0 +1,181 @@
+package communication;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Duplicate suppression for the messages of one sender.
+ *
+ * The link numbers the messages to each destination contiguously from the
+ * sender's incarnation, so everything up to a low watermark is known to be
+ * delivered and only the next {@code size} sequence numbers need a bit each.
+ * Memory is constant no matter how long the process runs.
+ *
+ * A window that starts from the sender's incarnation is behind when this
+ * process restarted and the sender did not: the numbers the sender used
+ * before were delivered to the previous run and are never sent again. The
+ * sender then tells it where to resume with {@link #skipTo}.
+ *
+ * There are no locks: the link feeds every sender's messages from a single
+ * thread at a time, which is the only requirement of this class.
+ */
+public class DeliveryWindow {
+
+    /**
+     * Outcome of {@link #mark}
+     */
+    public enum Result {
+        NEW, // First time seen, deliver it
+        DUPLICATE, // Already delivered, only acknowledge it
+        AHEAD, // Beyond the window, drop it unacknowledged so it is retransmitted
+        STALE // From an older incarnation of the sender, drop it
+    }
+
+    private final long[] bits;
+    private final int mask;
+
+    private volatile long incarnation;
+    private volatile long lowWatermark; // Every sequence number <= this has been delivered
+    private long highestMarked;
+
+    /**
+     * Constructor
+     *
+     * @param size Number of sequence numbers tracked above the low watermark,
+     *             rounded up to a multiple of 64 and a power of two
+     */
+    public DeliveryWindow(int size) {
+        int capacity = Integer.highestOneBit(Math.max(64, size) - 1) << 1;
+        this.bits = new long[capacity >>> 6];
+        this.mask = capacity - 1;
+        this.incarnation = Long.MIN_VALUE;
+        this.lowWatermark = Long.MAX_VALUE;
+    }
+
+    /**
+     * Record a sequence number from the given incarnation of the sender
+     */
+    public Result mark(long senderIncarnation, long sequenceNumber) {
+        if (senderIncarnation < incarnation) {
+            return Result.STALE;
+        }
+        if (senderIncarnation > incarnation) {
+            // The sender (re)started: its numbering begins at its incarnation
+            reset(senderIncarnation);
+        }
+
+        long low = lowWatermark;
+        if (sequenceNumber <= low) {
+            return Result.DUPLICATE;
+        }
+        if (sequenceNumber - low > bits.length * 64L) {
+            return Result.AHEAD;
+        }
+
+        int index = (int) (sequenceNumber & mask);
+        long bit = 1L << (index & 63);
+        if ((bits[index >>> 6] & bit) != 0) {
+            return Result.DUPLICATE;
+        }
+        bits[index >>> 6] |= bit;
+        highestMarked = Math.max(highestMarked, sequenceNumber);
+
+        advance();
+        return Result.NEW;
+    }
+
+    /**
+     * Move the low watermark up to a sequence number below which the sender
+     * has nothing left to deliver, whether to this run of the process or to
+     * an earlier one
+     */
+    public void skipTo(long senderIncarnation, long sequenceNumber) {
+        if (senderIncarnation < incarnation) {
+            return;
+        }
+        if (senderIncarnation > incarnation) {
+            reset(senderIncarnation);
+        }
+
+        long low = lowWatermark;
+        if (sequenceNumber <= low) {
+            return;
+        }
+        if (sequenceNumber - low >= bits.length * 64L) {
+            Arrays.fill(bits, 0);
+        } else {
+            for (long skipped = low + 1; skipped <= sequenceNumber; skipped++) {
+                int index = (int) (skipped & mask);
+                bits[index >>> 6] &= ~(1L << (index & 63));
+            }
+        }
+        lowWatermark = sequenceNumber;
+        highestMarked = Math.max(highestMarked, sequenceNumber);
+
+        advance();
+    }
+
+    public long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public long getIncarnation() {
+        return incarnation;
+    }
+
+    /**
+     * Bitmap of the sequence numbers delivered above the low watermark: bit
+     * {@code i} of the big-endian longs stands for {@code lowWatermark + 1 + i}.
+     * Only as many words as needed to reach the highest delivered number are
+     * returned, so the bitmap is empty when everything arrived in order.
+     *
+     * @param maxWords Upper bound on the number of 64-bit words
+     */
+    public byte[] selectiveAcks(int maxWords) {
+        long low = lowWatermark;
+        if (highestMarked <= low) {
+            return new byte[0];
+        }
+
+        long span = Math.min(highestMarked - low, Math.min(maxWords, bits.length) * 64L);
+        long[] words = new long[(int) ((span + 63) >>> 6)];
+        for (int i = 0; i < span; i++) {
+            int index = (int) ((low + 1 + i) & mask);
+            if ((bits[index >>> 6] & (1L << (index & 63))) != 0) {
+                words[i >>> 6] |= 1L << (i & 63);
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(words.length * Long.BYTES);
+        for (long word : words) {
+            buffer.putLong(word);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Slide the window over the contiguous run of delivered sequence numbers
+     */
+    private void advance() {
+        long low = lowWatermark;
+        while (true) {
+            int index = (int) ((low + 1) & mask);
+            long bit = 1L << (index & 63);
+            if ((bits[index >>> 6] & bit) == 0) {
+                break;
+            }
+            bits[index >>> 6] &= ~bit;
+            low++;
+        }
+        lowWatermark = low;
+    }
+
+    private void reset(long senderIncarnation) {
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = 0;
+        }
+        lowWatermark = senderIncarnation - 1;
+        highestMarked = lowWatermark;
+        incarnation = senderIncarnation;
+    }
+}
@@ -0,0 +1,22 @@
+package communication;
+
+/**
+ * FETCH message asking peers for the value behind a decided digest
+ */
+public class FetchMessage {
+    private final int instance;
+    private final String digest;
+
+    public FetchMessage(int instance, String digest) {
+        this.instance = instance;
+        this.digest = digest;
+    }
+
+    public int getInstance() {
+        return instance;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+}
@@ -0,0 +1,207 @@
+package communication;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reassembly of the messages one sender split into FRAGMENT messages.
+ *
+ * The link gives the fragments of a message consecutive sequence numbers, so
+ * every fragment is acknowledged, retransmitted and deduplicated on its own
+ * and only the missing ones are resent. Each fragment payload starts with its
+ * index, the fragment count and the total message length; the message is
+ * identified by the sequence number of its first fragment.
+ *
+ * Memory is bounded: a new message is only admitted if its total length fits
+ * in the budget left by the messages already being reassembled. Fragments that
+ * are not admitted are left unacknowledged so the sender retransmits them once
+ * room frees up, and a message that was admitted always has room to complete.
+ * A message still incomplete when its deadline on the timer wheel passes,
+ * e.g. because its sender stopped, is dropped and its bytes freed.
+ *
+ * Like {@link DeliveryWindow}, this class relies on being fed from a single
+ * thread at a time; it only synchronizes with the timer thread expiring
+ * messages.
+ */
+public class FragmentReassembler {
+
+    public static final int HEADER_SIZE = 3 * Integer.BYTES;
+
+    private final int maxMessageSize;
+    private final long budgetBytes;
+    private final HashedTimerWheel timer;
+    private final long timeoutMs;
+    private final Map<Long, Partial> partials;
+
+    private long incarnation;
+    private long reservedBytes;
+
+    /**
+     * Constructor
+     *
+     * @param maxMessageSize Largest message accepted from the sender
+     * @param budgetBytes    Bytes that may be held for incomplete messages
+     * @param timer          Timer wheel the reassembly deadlines run on
+     * @param timeoutMs      Time a message has to complete from its first
+     *                       fragment on
+     */
+    public FragmentReassembler(int maxMessageSize, long budgetBytes, HashedTimerWheel timer, long timeoutMs) {
+        this.maxMessageSize = maxMessageSize;
+        this.budgetBytes = budgetBytes;
+        this.timer = timer;
+        this.timeoutMs = timeoutMs;
+        this.partials = new HashMap<>();
+        this.incarnation = Long.MIN_VALUE;
+    }
+
+    /**
+     * Split a payload into fragment payloads of at most
+     * {@code chunkSize + HEADER_SIZE} bytes
+     */
+    public static List<byte[]> split(byte[] payload, int chunkSize) {
+        int count = (payload.length + chunkSize - 1) / chunkSize;
+        List<byte[]> fragments = new ArrayList<>(count);
+
+        for (int index = 0; index < count; index++) {
+            int offset = index * chunkSize;
+            int length = Math.min(chunkSize, payload.length - offset);
+            fragments.add(ByteBuffer.allocate(HEADER_SIZE + length)
+                    .putInt(index)
+                    .putInt(count)
+                    .putInt(payload.length)
+                    .put(payload, offset, length)
+                    .array());
+        }
+        return fragments;
+    }
+
+    /**
+     * Whether a fragment may be recorded now: it is well formed and its message
+     * is either already being reassembled or fits in the remaining budget
+     */
+    public synchronized boolean admits(long senderIncarnation, long sequenceNumber, ByteBuffer fragment) {
+        if (fragment == null || fragment.remaining() < HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer header = fragment.duplicate();
+        int index = header.getInt();
+        int count = header.getInt();
+        int totalLength = header.getInt();
+
+        if (count <= 0 || index < 0 || index >= count || totalLength < 0 || totalLength > maxMessageSize
+                || count > Math.max(1, totalLength) || fragment.remaining() - HEADER_SIZE > totalLength) {
+            return false;
+        }
+        if (senderIncarnation < incarnation) {
+            return false;
+        }
+        if (senderIncarnation > incarnation) {
+            return totalLength <= budgetBytes; // Everything held so far is about to be discarded
+        }
+
+        Partial partial = partials.get(sequenceNumber - index);
+        if (partial != null) {
+            return partial.count == count && partial.totalLength == totalLength
+                    && partial.receivedBytes + fragment.remaining() - HEADER_SIZE <= totalLength;
+        }
+        return reservedBytes + totalLength <= budgetBytes;
+    }
+
+    /**
+     * Record a new fragment, previously checked with {@link #admits}
+     *
+     * @return The whole message payload once its last fragment arrived,
+     *         otherwise null
+     */
+    public synchronized byte[] add(long senderIncarnation, long sequenceNumber, ByteBuffer fragment) {
+        if (senderIncarnation > incarnation) {
+            // The sender restarted: its unfinished messages will never complete
+            for (Partial partial : partials.values()) {
+                partial.timeout.cancel();
+            }
+            partials.clear();
+            reservedBytes = 0;
+            incarnation = senderIncarnation;
+        }
+
+        ByteBuffer buffer = fragment.duplicate();
+        int index = buffer.getInt();
+        int count = buffer.getInt();
+        int totalLength = buffer.getInt();
+        long firstSequence = sequenceNumber - index;
+
+        Partial partial = partials.get(firstSequence);
+        if (partial == null) {
+            Partial created = new Partial(count, totalLength);
+            created.timeout = timer.schedule(() -> expire(firstSequence, created), timeoutMs);
+            partials.put(firstSequence, created);
+            reservedBytes += totalLength;
+            partial = created;
+        }
+
+        if (partial.chunks[index] == null) {
+            byte[] chunk = new byte[buffer.remaining()];
+            buffer.get(chunk);
+            partial.chunks[index] = chunk;
+            partial.receivedBytes += chunk.length;
+            partial.missing--;
+        }
+
+        if (partial.missing > 0) {
+            return null;
+        }
+
+        partials.remove(firstSequence);
+        reservedBytes -= totalLength;
+        partial.timeout.cancel();
+
+        if (partial.receivedBytes != totalLength) {
+            System.err.println("Discarding malformed fragmented message " + firstSequence);
+            return null;
+        }
+
+        ByteBuffer message = ByteBuffer.allocate(totalLength);
+        for (byte[] chunk : partial.chunks) {
+            message.put(chunk);
+        }
+        return message.array();
+    }
+
+    /**
+     * Drop a message that did not complete before its deadline
+     */
+    private synchronized void expire(long firstSequence, Partial partial) {
+        if (partials.remove(firstSequence, partial)) {
+            reservedBytes -= partial.totalLength;
+            System.err.println("Dropping fragmented message " + firstSequence + ": "
+                    + partial.missing + " of " + partial.count + " fragments still missing");
+        }
+    }
+
+    /**
+     * Sequence number the reassembled message is delivered with: that of its
+     * first fragment
+     */
+    public static long firstSequence(long sequenceNumber, ByteBuffer fragment) {
+        return sequenceNumber - fragment.getInt(fragment.position());
+    }
+
+    private static class Partial {
+        private final int count;
+        private final int totalLength;
+        private final byte[][] chunks;
+        private int missing;
+        private long receivedBytes;
+        private HashedTimerWheel.Timeout timeout;
+
+        private Partial(int count, int totalLength) {
+            this.count = count;
+            this.totalLength = totalLength;
+            this.chunks = new byte[count][];
+            this.missing = count;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package communication;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel for large numbers of short, mostly cancelled timeouts.
+ *
+ * Scheduling and cancelling are O(1) and lock-free for the caller: new
+ * timeouts go through a queue that the wheel thread drains on every tick into
+ * the bucket of their deadline. Expired tasks run on the wheel thread, so they
+ * must be short and must not block.
+ */
+public class HashedTimerWheel {
+
+    /**
+     * Handle to a scheduled task
+     */
+    public static class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        private long remainingRounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final long tickNanos;
+    private final List<Queue<Timeout>> buckets;
+    private final int mask;
+    private final Queue<Timeout> incoming;
+    private final Thread worker;
+    private final long startTime;
+
+    private volatile boolean running;
+    private long tick;
+
+    /**
+     * Constructor
+     *
+     * @param name      Name of the wheel thread
+     * @param tickMs    Resolution of the wheel
+     * @param wheelSize Number of buckets, rounded up to a power of two
+     */
+    public HashedTimerWheel(String name, long tickMs, int wheelSize) {
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMs));
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayDeque<>());
+        }
+        this.mask = size - 1;
+        this.incoming = new ConcurrentLinkedQueue<>();
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        worker.start();
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    /**
+     * Run a task once after the given delay, rounded up to the wheel resolution
+     */
+    public Timeout schedule(Runnable task, long delayMs) {
+        long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs));
+        Timeout timeout = new Timeout(task, (deadline + tickNanos - 1) / tickNanos);
+        incoming.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        return;
+                    }
+                }
+            }
+
+            tick++;
+            transferIncoming();
+            expire(buckets.get((int) (tick & mask)));
+        }
+    }
+
+    /**
+     * Move newly scheduled timeouts into their buckets
+     */
+    private void transferIncoming() {
+        Timeout timeout;
+        while ((timeout = incoming.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long target = Math.max(timeout.deadlineTick, tick);
+            timeout.remainingRounds = (target - tick) / buckets.size();
+            buckets.get((int) (target & mask)).add(timeout);
+        }
+    }
+
+    private void expire(Queue<Timeout> bucket) {
+        Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+
+            if (timeout.cancelled) {
+                iterator.remove();
+            } else if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+            } else {
+                iterator.remove();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Error running timer task: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
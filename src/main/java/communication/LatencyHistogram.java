@@ -0,0 +1,78 @@
+package communication;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with power-of-two buckets.
+ *
+ * Recording is a handful of uncontended atomic adds, cheap enough for every
+ * signature and verification. Percentiles are reported as the upper bound of
+ * their bucket, so they are accurate to within a factor of two.
+ */
+public class LatencyHistogram {
+
+    private final AtomicLongArray buckets; // Bucket i counts durations in [2^(i-1), 2^i) ns
+    private final LongAdder count;
+    private final LongAdder totalNanos;
+    private final LongAccumulator maxNanos;
+
+    public LatencyHistogram() {
+        this.buckets = new AtomicLongArray(Long.SIZE);
+        this.count = new LongAdder();
+        this.totalNanos = new LongAdder();
+        this.maxNanos = new LongAccumulator(Math::max, 0);
+    }
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets.incrementAndGet(Math.min(Long.SIZE - 1, Long.SIZE - Long.numberOfLeadingZeros(value)));
+        count.increment();
+        totalNanos.add(value);
+        maxNanos.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMeanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / 1000.0 / n;
+    }
+
+    public double getP50Micros() {
+        return percentileMicros(0.50);
+    }
+
+    public double getP99Micros() {
+        return percentileMicros(0.99);
+    }
+
+    public double getMaxMicros() {
+        return maxNanos.get() / 1000.0;
+    }
+
+    private double percentileMicros(double fraction) {
+        long total = 0;
+        long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min((double) (1L << Math.min(i, 62)), maxNanos.get()) / 1000.0;
+            }
+        }
+        return getMaxMicros();
+    }
+}
@@ -0,0 +1,367 @@
+package communication;
+
+/**
+ * Tunable options for the AuthenticatedPerfectLink.
+ *
+ * Defaults keep the original single blocking UDP socket, so creating a link
+ * without a config is equivalent to using {@code new LinkConfig()}.
+ * Values can be overridden through system properties prefixed with {@code link.}
+ * (e.g. {@code -Dlink.transport=NIO -Dlink.ioThreads=4}).
+ */
+public class LinkConfig {
+
+    /**
+     * Available UDP transports
+     */
+    public enum TransportMode {
+        BLOCKING, // One thread blocked on DatagramSocket.receive
+        NIO, // DatagramChannel + Selector with a pool of I/O threads
+        LOOPBACK, // In-process LoopbackNetwork, no sockets
+        TCP // Persistent length-prefixed TCP connections per peer
+    }
+
+    private TransportMode transportMode = TransportMode.BLOCKING;
+    private int ioThreads = 1;
+    private int maxDatagramSize = 8196;
+    private int bufferPoolSize = 256;
+    private int verifierThreads = 0; // 0 verifies inline on the receive thread
+    private boolean sessionMac = false;
+    private boolean retransmission = true;
+    private long initialRtoMs = 200;
+    private long minRtoMs = 20;
+    private long maxRtoMs = 5000;
+    private long timerTickMs = 10;
+    private int deliveryWindowSize = 4096;
+    private long ackDelayMs = 5; // 0 acknowledges every DATA message immediately
+    private int maxMessageSize = 4 * 1024 * 1024;
+    private int sendQueueDepth = 1024;
+    private LoopbackNetwork loopbackNetwork; // null uses LoopbackNetwork.getDefault()
+    private long reassemblyBufferBytes = 16 * 1024 * 1024;
+    private long reassemblyTimeoutMs = 30000;
+    private long batchFlushMicros = 0; // 0 sends every message in its own datagram
+    private int batchMaxBytes = 7680;
+    private boolean jmx = true;
+    private int verifiedCacheSize = 8192; // 0 verifies every copy of a frame
+
+    public TransportMode getTransportMode() {
+        return transportMode;
+    }
+
+    public void setTransportMode(TransportMode transportMode) {
+        this.transportMode = transportMode;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("ioThreads must be at least 1");
+        }
+        this.ioThreads = ioThreads;
+    }
+
+    public int getMaxDatagramSize() {
+        return maxDatagramSize;
+    }
+
+    public void setMaxDatagramSize(int maxDatagramSize) {
+        // The link further checks that a chunk still fits next to its signature
+        if (maxDatagramSize <= SignedMessage.FRAME_HEADER_SIZE + Message.HEADER_SIZE
+                + FragmentReassembler.HEADER_SIZE) {
+            throw new IllegalArgumentException("maxDatagramSize leaves no room for a message");
+        }
+        this.maxDatagramSize = maxDatagramSize;
+    }
+
+    public int getBufferPoolSize() {
+        return bufferPoolSize;
+    }
+
+    public void setBufferPoolSize(int bufferPoolSize) {
+        if (bufferPoolSize < 0) {
+            throw new IllegalArgumentException("bufferPoolSize must not be negative");
+        }
+        this.bufferPoolSize = bufferPoolSize;
+    }
+
+    public int getVerifierThreads() {
+        return verifierThreads;
+    }
+
+    public void setVerifierThreads(int verifierThreads) {
+        if (verifierThreads < 0) {
+            throw new IllegalArgumentException("verifierThreads must not be negative");
+        }
+        this.verifierThreads = verifierThreads;
+    }
+
+    public boolean isSessionMac() {
+        return sessionMac;
+    }
+
+    /**
+     * Authenticate node-to-node messages with HMAC-SHA256 session keys set up
+     * by an RSA handshake instead of signing every datagram
+     */
+    public void setSessionMac(boolean sessionMac) {
+        this.sessionMac = sessionMac;
+    }
+
+    public boolean isRetransmission() {
+        return retransmission;
+    }
+
+    public void setRetransmission(boolean retransmission) {
+        this.retransmission = retransmission;
+    }
+
+    public long getInitialRtoMs() {
+        return initialRtoMs;
+    }
+
+    /**
+     * Retransmission timeout used for a destination until its first RTT sample
+     */
+    public void setInitialRtoMs(long initialRtoMs) {
+        this.initialRtoMs = initialRtoMs;
+    }
+
+    public long getMinRtoMs() {
+        return minRtoMs;
+    }
+
+    public void setMinRtoMs(long minRtoMs) {
+        this.minRtoMs = minRtoMs;
+    }
+
+    public long getMaxRtoMs() {
+        return maxRtoMs;
+    }
+
+    /**
+     * Upper bound of the retransmission timeout, including exponential backoff
+     */
+    public void setMaxRtoMs(long maxRtoMs) {
+        this.maxRtoMs = maxRtoMs;
+    }
+
+    public long getTimerTickMs() {
+        return timerTickMs;
+    }
+
+    public void setTimerTickMs(long timerTickMs) {
+        if (timerTickMs <= 0) {
+            throw new IllegalArgumentException("timerTickMs must be positive");
+        }
+        this.timerTickMs = timerTickMs;
+    }
+
+    public int getDeliveryWindowSize() {
+        return deliveryWindowSize;
+    }
+
+    /**
+     * Number of sequence numbers per sender tracked above its low watermark for
+     * duplicate suppression
+     */
+    public void setDeliveryWindowSize(int deliveryWindowSize) {
+        if (deliveryWindowSize < 64) {
+            throw new IllegalArgumentException("deliveryWindowSize must be at least 64");
+        }
+        this.deliveryWindowSize = deliveryWindowSize;
+    }
+
+    public long getAckDelayMs() {
+        return ackDelayMs;
+    }
+
+    /**
+     * How long a receiver waits before sending its cumulative ACK to a peer, so
+     * one ACK covers everything that arrived meanwhile or rides on outgoing DATA
+     */
+    public void setAckDelayMs(long ackDelayMs) {
+        if (ackDelayMs < 0) {
+            throw new IllegalArgumentException("ackDelayMs must not be negative");
+        }
+        this.ackDelayMs = ackDelayMs;
+    }
+
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Largest message payload the link sends or reassembles; bigger payloads
+     * are split into fragments that each fit in one datagram
+     */
+    public void setMaxMessageSize(int maxMessageSize) {
+        if (maxMessageSize <= 0) {
+            throw new IllegalArgumentException("maxMessageSize must be positive");
+        }
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public long getReassemblyBufferBytes() {
+        return reassemblyBufferBytes;
+    }
+
+    /**
+     * Bytes each peer may have held in partially reassembled messages
+     */
+    public void setReassemblyBufferBytes(long reassemblyBufferBytes) {
+        if (reassemblyBufferBytes <= 0) {
+            throw new IllegalArgumentException("reassemblyBufferBytes must be positive");
+        }
+        this.reassemblyBufferBytes = reassemblyBufferBytes;
+    }
+
+    public long getReassemblyTimeoutMs() {
+        return reassemblyTimeoutMs;
+    }
+
+    /**
+     * How long a partially reassembled message may wait for its missing
+     * fragments before it is dropped and its bytes freed
+     */
+    public void setReassemblyTimeoutMs(long reassemblyTimeoutMs) {
+        if (reassemblyTimeoutMs <= 0) {
+            throw new IllegalArgumentException("reassemblyTimeoutMs must be positive");
+        }
+        this.reassemblyTimeoutMs = reassemblyTimeoutMs;
+    }
+
+    public int getSendQueueDepth() {
+        return sendQueueDepth;
+    }
+
+    /**
+     * Messages per destination that may be queued or awaiting acknowledgment
+     * before sends to it are refused. A fragmented message counts once per
+     * fragment.
+     */
+    public void setSendQueueDepth(int sendQueueDepth) {
+        if (sendQueueDepth <= 0) {
+            throw new IllegalArgumentException("sendQueueDepth must be positive");
+        }
+        this.sendQueueDepth = sendQueueDepth;
+    }
+
+    public LoopbackNetwork getLoopbackNetwork() {
+        return loopbackNetwork;
+    }
+
+    /**
+     * Network the LOOPBACK transport binds to, for running several isolated
+     * networks in one JVM
+     */
+    public void setLoopbackNetwork(LoopbackNetwork loopbackNetwork) {
+        this.loopbackNetwork = loopbackNetwork;
+    }
+
+    public long getBatchFlushMicros() {
+        return batchFlushMicros;
+    }
+
+    /**
+     * How long a message may wait for others to the same destination before its
+     * frame is sent; 0 disables coalescing
+     */
+    public void setBatchFlushMicros(long batchFlushMicros) {
+        if (batchFlushMicros < 0) {
+            throw new IllegalArgumentException("batchFlushMicros must not be negative");
+        }
+        this.batchFlushMicros = batchFlushMicros;
+    }
+
+    public int getBatchMaxBytes() {
+        return batchMaxBytes;
+    }
+
+    /**
+     * Size of the queued messages that triggers an immediate flush. Capped so a
+     * batch always fits in one datagram.
+     */
+    public void setBatchMaxBytes(int batchMaxBytes) {
+        if (batchMaxBytes <= 0) {
+            throw new IllegalArgumentException("batchMaxBytes must be positive");
+        }
+        this.batchMaxBytes = batchMaxBytes;
+    }
+
+    public int getVerifiedCacheSize() {
+        return verifiedCacheSize;
+    }
+
+    /**
+     * Number of recently verified RSA-signed frames remembered, so their
+     * retransmitted copies skip the verification; 0 disables the cache
+     */
+    public void setVerifiedCacheSize(int verifiedCacheSize) {
+        if (verifiedCacheSize < 0) {
+            throw new IllegalArgumentException("verifiedCacheSize must not be negative");
+        }
+        this.verifiedCacheSize = verifiedCacheSize;
+    }
+
+    public boolean isJmx() {
+        return jmx;
+    }
+
+    /**
+     * Whether the link registers its metrics with the platform MBean server
+     */
+    public void setJmx(boolean jmx) {
+        this.jmx = jmx;
+    }
+
+    /**
+     * Build a config from the defaults overridden by any {@code link.*} system
+     * properties
+     */
+    public static LinkConfig fromSystemProperties() {
+        LinkConfig config = new LinkConfig();
+
+        String transport = System.getProperty("link.transport");
+        if (transport != null) {
+            config.setTransportMode(TransportMode.valueOf(transport.trim().toUpperCase()));
+        }
+
+        config.setIoThreads(Integer.getInteger("link.ioThreads", config.getIoThreads()));
+        config.setMaxDatagramSize(Integer.getInteger("link.maxDatagramSize", config.getMaxDatagramSize()));
+        config.setBufferPoolSize(Integer.getInteger("link.bufferPoolSize", config.getBufferPoolSize()));
+        config.setVerifierThreads(Integer.getInteger("link.verifierThreads", config.getVerifierThreads()));
+
+        String sessionMac = System.getProperty("link.sessionMac");
+        if (sessionMac != null) {
+            config.setSessionMac(Boolean.parseBoolean(sessionMac.trim()));
+        }
+
+        String retransmission = System.getProperty("link.retransmission");
+        if (retransmission != null) {
+            config.setRetransmission(Boolean.parseBoolean(retransmission.trim()));
+        }
+        config.setInitialRtoMs(Long.getLong("link.initialRtoMs", config.getInitialRtoMs()));
+        config.setMinRtoMs(Long.getLong("link.minRtoMs", config.getMinRtoMs()));
+        config.setMaxRtoMs(Long.getLong("link.maxRtoMs", config.getMaxRtoMs()));
+        config.setTimerTickMs(Long.getLong("link.timerTickMs", config.getTimerTickMs()));
+        config.setDeliveryWindowSize(Integer.getInteger("link.deliveryWindowSize", config.getDeliveryWindowSize()));
+        config.setAckDelayMs(Long.getLong("link.ackDelayMs", config.getAckDelayMs()));
+        config.setMaxMessageSize(Integer.getInteger("link.maxMessageSize", config.getMaxMessageSize()));
+        config.setReassemblyBufferBytes(Long.getLong("link.reassemblyBufferBytes",
+                config.getReassemblyBufferBytes()));
+        config.setReassemblyTimeoutMs(Long.getLong("link.reassemblyTimeoutMs", config.getReassemblyTimeoutMs()));
+        config.setSendQueueDepth(Integer.getInteger("link.sendQueueDepth", config.getSendQueueDepth()));
+        config.setVerifiedCacheSize(Integer.getInteger("link.verifiedCacheSize", config.getVerifiedCacheSize()));
+        config.setBatchFlushMicros(Long.getLong("link.batchFlushMicros", config.getBatchFlushMicros()));
+        config.setBatchMaxBytes(Integer.getInteger("link.batchMaxBytes", config.getBatchMaxBytes()));
+
+        String jmx = System.getProperty("link.jmx");
+        if (jmx != null) {
+            config.setJmx(Boolean.parseBoolean(jmx.trim()));
+        }
+
+        return config;
+    }
+}
@@ -0,0 +1,235 @@
+package communication;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntUnaryOperator;
+import java.util.function.ToLongFunction;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of one AuthenticatedPerfectLink.
+ *
+ * Everything is updated with LongAdders and lock-free histograms on the hot
+ * path; gauges such as the pending-ACK depth are only computed when read.
+ */
+public class LinkMetrics implements LinkMetricsMXBean {
+
+    private final int selfId;
+    private final LatencyHistogram signLatency;
+    private final LatencyHistogram verifyLatency;
+    private final LatencyHistogram serializeLatency;
+    private final Map<Integer, PeerCounters> peers;
+    private final LongAdder duplicateDeliveries;
+    private final LongAdder invalidFrames;
+    private final LongAdder verifyCacheHits;
+    private final LongAdder retransmissions;
+    private final LongAdder backpressureRejections;
+    private final IntUnaryOperator pendingAcks;
+    private final ToLongFunction<Integer> retransmissionTimeout;
+
+    private ObjectName registeredName;
+
+    /**
+     * Constructor
+     *
+     * @param selfId                ID of the process the link belongs to
+     * @param peerIds               Processes the link talks to
+     * @param pendingAcks           Unacknowledged messages to a peer
+     * @param retransmissionTimeout Current retransmission timeout of a peer, in ms
+     */
+    public LinkMetrics(int selfId, Iterable<Integer> peerIds, IntUnaryOperator pendingAcks,
+            ToLongFunction<Integer> retransmissionTimeout) {
+        this.selfId = selfId;
+        this.signLatency = new LatencyHistogram();
+        this.verifyLatency = new LatencyHistogram();
+        this.serializeLatency = new LatencyHistogram();
+        this.peers = new ConcurrentHashMap<>();
+        for (int peerId : peerIds) {
+            peers.put(peerId, new PeerCounters());
+        }
+        this.duplicateDeliveries = new LongAdder();
+        this.invalidFrames = new LongAdder();
+        this.verifyCacheHits = new LongAdder();
+        this.retransmissions = new LongAdder();
+        this.backpressureRejections = new LongAdder();
+        this.pendingAcks = pendingAcks;
+        this.retransmissionTimeout = retransmissionTimeout;
+    }
+
+    /**
+     * Expose the metrics through the platform MBean server. Failures are only
+     * logged: metrics must never keep the link from running.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("communication:type=AuthenticatedPerfectLink,id=" + selfId);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            System.err.println("Failed to register link metrics: " + e.getMessage());
+        }
+    }
+
+    public void unregister() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException e) {
+            System.err.println("Failed to unregister link metrics: " + e.getMessage());
+        }
+        registeredName = null;
+    }
+
+    public void recordSign(long nanos) {
+        signLatency.record(nanos);
+    }
+
+    public void recordVerify(long nanos) {
+        verifyLatency.record(nanos);
+    }
+
+    public void recordSerialize(long nanos) {
+        serializeLatency.record(nanos);
+    }
+
+    public void recordIn(int peer, int bytes) {
+        PeerCounters counters = peers.get(peer);
+        if (counters != null) {
+            counters.packetsIn.increment();
+            counters.bytesIn.add(bytes);
+        }
+    }
+
+    public void recordOut(int peer, int bytes) {
+        PeerCounters counters = peers.get(peer);
+        if (counters != null) {
+            counters.packetsOut.increment();
+            counters.bytesOut.add(bytes);
+        }
+    }
+
+    public void recordDuplicate() {
+        duplicateDeliveries.increment();
+    }
+
+    public void recordInvalidFrame() {
+        invalidFrames.increment();
+    }
+
+    public void recordVerifyCacheHit() {
+        verifyCacheHits.increment();
+    }
+
+    public void recordRetransmission() {
+        retransmissions.increment();
+    }
+
+    public void recordBackpressure() {
+        backpressureRejections.increment();
+    }
+
+    @Override
+    public LatencyHistogram getSignLatency() {
+        return signLatency;
+    }
+
+    @Override
+    public LatencyHistogram getVerifyLatency() {
+        return verifyLatency;
+    }
+
+    @Override
+    public LatencyHistogram getSerializeLatency() {
+        return serializeLatency;
+    }
+
+    @Override
+    public Map<Integer, Long> getBytesIn() {
+        return perPeer(counters -> counters.bytesIn.sum());
+    }
+
+    @Override
+    public Map<Integer, Long> getPacketsIn() {
+        return perPeer(counters -> counters.packetsIn.sum());
+    }
+
+    @Override
+    public Map<Integer, Long> getBytesOut() {
+        return perPeer(counters -> counters.bytesOut.sum());
+    }
+
+    @Override
+    public Map<Integer, Long> getPacketsOut() {
+        return perPeer(counters -> counters.packetsOut.sum());
+    }
+
+    @Override
+    public long getDuplicateDeliveries() {
+        return duplicateDeliveries.sum();
+    }
+
+    @Override
+    public long getInvalidFrames() {
+        return invalidFrames.sum();
+    }
+
+    @Override
+    public long getVerifyCacheHits() {
+        return verifyCacheHits.sum();
+    }
+
+    @Override
+    public long getRetransmissions() {
+        return retransmissions.sum();
+    }
+
+    @Override
+    public long getBackpressureRejections() {
+        return backpressureRejections.sum();
+    }
+
+    @Override
+    public Map<Integer, Integer> getPendingAcks() {
+        Map<Integer, Integer> depths = new TreeMap<>();
+        for (int peer : peers.keySet()) {
+            depths.put(peer, pendingAcks.applyAsInt(peer));
+        }
+        return depths;
+    }
+
+    @Override
+    public Map<Integer, Long> getRetransmissionTimeoutMs() {
+        Map<Integer, Long> timeouts = new TreeMap<>();
+        for (int peer : peers.keySet()) {
+            timeouts.put(peer, retransmissionTimeout.applyAsLong(peer));
+        }
+        return timeouts;
+    }
+
+    private Map<Integer, Long> perPeer(ToLongFunction<PeerCounters> value) {
+        Map<Integer, Long> values = new TreeMap<>();
+        for (Map.Entry<Integer, PeerCounters> entry : peers.entrySet()) {
+            values.put(entry.getKey(), value.applyAsLong(entry.getValue()));
+        }
+        return values;
+    }
+
+    private static class PeerCounters {
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder packetsIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final LongAdder packetsOut = new LongAdder();
+    }
+}
@@ -0,0 +1,39 @@
+package communication;
+
+import java.util.Map;
+
+/**
+ * JMX view of the metrics of an AuthenticatedPerfectLink, registered as
+ * {@code communication:type=AuthenticatedPerfectLink,id=<process id>}.
+ * Per-peer values are keyed by process ID.
+ */
+public interface LinkMetricsMXBean {
+
+    LatencyHistogram getSignLatency();
+
+    LatencyHistogram getVerifyLatency();
+
+    LatencyHistogram getSerializeLatency();
+
+    Map<Integer, Long> getBytesIn();
+
+    Map<Integer, Long> getPacketsIn();
+
+    Map<Integer, Long> getBytesOut();
+
+    Map<Integer, Long> getPacketsOut();
+
+    long getDuplicateDeliveries();
+
+    long getInvalidFrames();
+
+    long getVerifyCacheHits();
+
+    long getRetransmissions();
+
+    long getBackpressureRejections();
+
+    Map<Integer, Integer> getPendingAcks();
+
+    Map<Integer, Long> getRetransmissionTimeoutMs();
+}
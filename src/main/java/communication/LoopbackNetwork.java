@@ -0,0 +1,211 @@
+package communication;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process network connecting {@link Transport}s bound in the same JVM, so
+ * many links (and ConsensusNodes) can run without real sockets.
+ *
+ * Every frame is delayed by a fixed latency plus a uniformly random jitter,
+ * dropped with a fixed probability, and serialized on its sender's outgoing
+ * link at the configured bandwidth. Every (source, destination) pair draws
+ * its loss and jitter from a generator of its own, seeded from the network
+ * seed and the two addresses, so the n-th frame on a pair always meets the
+ * same fate whatever the other threads do. Each bound transport delivers its
+ * frames on a thread of its own.
+ */
+public class LoopbackNetwork {
+
+    // Frames above the UDP payload limit are dropped, as a real network would
+    private static final int MAX_FRAME_SIZE = 65507;
+
+    private static LoopbackNetwork defaultNetwork;
+
+    private final long latencyMicros;
+    private final long jitterMicros;
+    private final double lossRate;
+    private final long bandwidthBytesPerSecond;
+    private final long seed;
+    private final Map<InetSocketAddress, LoopbackTransport> transports;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Constructor
+     *
+     * @param latencyMicros           One-way delay of every frame
+     * @param jitterMicros            Upper bound of the random delay added to it
+     * @param lossRate                Probability of dropping a frame, in [0, 1)
+     * @param bandwidthBytesPerSecond Outgoing bandwidth of every transport; 0 is unlimited
+     * @param seed                    Seed of the loss and jitter generators
+     */
+    public LoopbackNetwork(long latencyMicros, long jitterMicros, double lossRate, long bandwidthBytesPerSecond,
+            long seed) {
+        if (latencyMicros < 0 || jitterMicros < 0 || bandwidthBytesPerSecond < 0) {
+            throw new IllegalArgumentException("Latency, jitter and bandwidth must not be negative");
+        }
+        if (lossRate < 0 || lossRate >= 1) {
+            throw new IllegalArgumentException("lossRate must be in [0, 1)");
+        }
+        this.latencyMicros = latencyMicros;
+        this.jitterMicros = jitterMicros;
+        this.lossRate = lossRate;
+        this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+        this.seed = seed;
+        this.transports = new ConcurrentHashMap<>();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "loopback-network");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Network shared by every link of the JVM that uses the LOOPBACK transport
+     * without its own network, configured by the {@code link.loopback.*}
+     * system properties the first time it is used
+     */
+    public static synchronized LoopbackNetwork getDefault() {
+        if (defaultNetwork == null) {
+            defaultNetwork = new LoopbackNetwork(
+                    Long.getLong("link.loopback.latencyMicros", 0),
+                    Long.getLong("link.loopback.jitterMicros", 0),
+                    Double.parseDouble(System.getProperty("link.loopback.lossRate", "0")),
+                    Long.getLong("link.loopback.bandwidth", 0),
+                    Long.getLong("link.loopback.seed", 0));
+        }
+        return defaultNetwork;
+    }
+
+    /**
+     * Create a transport reachable at the given address
+     *
+     * @throws IOException if the address is already bound
+     */
+    public Transport bind(InetSocketAddress address) throws IOException {
+        LoopbackTransport transport = new LoopbackTransport(address);
+        if (transports.putIfAbsent(address, transport) != null) {
+            throw new IOException("Address already in use: " + address);
+        }
+        return transport;
+    }
+
+    /**
+     * Route a frame from a transport to the one bound at the destination
+     */
+    private void route(LoopbackTransport source, byte[] frame, InetSocketAddress destination) {
+        LoopbackTransport target = transports.get(destination);
+        if (target == null || frame.length > MAX_FRAME_SIZE) {
+            return;
+        }
+
+        Random random = source.randomTo(destination);
+        long delayNanos;
+        synchronized (random) {
+            if (random.nextDouble() < lossRate) {
+                return;
+            }
+            delayNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros
+                    + (jitterMicros > 0 ? (long) (random.nextDouble() * jitterMicros) : 0));
+        }
+
+        if (bandwidthBytesPerSecond > 0) {
+            // The frame leaves once the sender's link has finished the previous ones
+            long transmitNanos = frame.length * 1_000_000_000L / bandwidthBytesPerSecond;
+            delayNanos += source.occupyLink(transmitNanos);
+        }
+
+        // The receiver gets its own copy, like a real network would
+        byte[] copy = frame.clone();
+        if (delayNanos == 0) {
+            target.deliver(copy);
+            return;
+        }
+        try {
+            scheduler.schedule(() -> target.deliver(copy), delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Network shut down
+        }
+    }
+
+    private class LoopbackTransport implements Transport {
+        private final InetSocketAddress address;
+        private final ExecutorService deliverer;
+        private final Map<InetSocketAddress, Random> randoms; // Loss and jitter by destination
+        private volatile Receiver receiver;
+        private long linkFreeAtNanos;
+
+        private LoopbackTransport(InetSocketAddress address) {
+            this.address = address;
+            this.linkFreeAtNanos = Long.MIN_VALUE;
+            this.randoms = new ConcurrentHashMap<>();
+            this.deliverer = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "loopback-" + address.getPort());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        @Override
+        public void start(Receiver receiver) {
+            this.receiver = receiver;
+        }
+
+        @Override
+        public void send(byte[] frame, InetSocketAddress destination) {
+            route(this, frame, destination);
+        }
+
+        @Override
+        public void close() {
+            transports.remove(address, this);
+            receiver = null;
+            deliverer.shutdown();
+        }
+
+        /**
+         * Generator of the loss and jitter of the frames to a destination
+         */
+        private Random randomTo(InetSocketAddress destination) {
+            return randoms.computeIfAbsent(destination,
+                    key -> new Random(seed ^ (31L * address.hashCode() + destination.hashCode())));
+        }
+
+        /**
+         * Reserve the outgoing link for a transmission
+         *
+         * @return Nanoseconds from now until the transmission ends
+         */
+        private synchronized long occupyLink(long transmitNanos) {
+            long now = System.nanoTime();
+            linkFreeAtNanos = Math.max(linkFreeAtNanos, now) + transmitNanos;
+            return linkFreeAtNanos - now;
+        }
+
+        private void deliver(byte[] frame) {
+            try {
+                deliverer.execute(() -> {
+                    Receiver current = receiver;
+                    if (current == null) {
+                        return;
+                    }
+                    try {
+                        current.onFrame(frame);
+                    } catch (Exception e) {
+                        System.err.println("Error processing incoming message: " + e.getMessage());
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Transport closed
+            }
+        }
+    }
+}
@@ -1,23 +1,66 @@
 package communication;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 public class Message {
 
+    // type + sequence number + ack sequence number + incarnation + consensus type and instance + payload length
+    public static final int HEADER_SIZE = Integer.BYTES + 3 * Long.BYTES + 1 + Integer.BYTES + Integer.BYTES;
+
     private final MessageType type;
     private final long sequenceNumber;
     private final long ackSequenceNumber; // Used only for ACK messages
-    private final byte[] payload;
+    private final long incarnation; // Sender's first sequence number since it started (on ACKs: the acknowledged sender's)
+    private final ConsensusMessageType consensusType; // Phase of the consensus message carried, null if none
+    private final int consensusInstance;
+    private final ByteBuffer payloadView; // Read-only, null when there is no payload
+    private volatile byte[] payload; // Copied out of the view on first use for decoded messages
 
     public Message(MessageType type, long sequenceNumber, byte[] payload) {
+        this(type, sequenceNumber, 0, payload);
+    }
+
+    public Message(MessageType type, long sequenceNumber, long incarnation, byte[] payload) {
+        this(type, sequenceNumber, incarnation, null, 0, payload);
+    }
+
+    /**
+     * Constructor for a DATA message carrying a consensus message, whose phase
+     * and instance are exposed in the header so the link and the receiver can
+     * tell what it is without decoding the payload
+     */
+    public Message(ConsensusMessageType consensusType, int consensusInstance, byte[] payload) {
+        this(MessageType.DATA, consensusInstance, 0, consensusType, consensusInstance, payload);
+    }
+
+    private Message(MessageType type, long sequenceNumber, long incarnation, ConsensusMessageType consensusType,
+            int consensusInstance, byte[] payload) {
+        this(type, sequenceNumber, incarnation, consensusType, consensusInstance,
+                payload == null ? null : ByteBuffer.wrap(payload).asReadOnlyBuffer());
+        this.payload = payload;
+    }
+
+    private Message(MessageType type, long sequenceNumber, long incarnation, ConsensusMessageType consensusType,
+            int consensusInstance, ByteBuffer payloadView) {
         this.type = type;
         this.sequenceNumber = sequenceNumber;
         this.ackSequenceNumber = type == MessageType.ACK ? sequenceNumber : -1;
-        this.payload = payload;
+        this.incarnation = incarnation;
+        this.consensusType = consensusType;
+        this.consensusInstance = consensusInstance;
+        this.payloadView = payloadView;
+    }
+
+    /**
+     * Copy of this message with another type, link sequence number,
+     * incarnation and payload, keeping the consensus header
+     */
+    public Message relabel(MessageType type, long sequenceNumber, long incarnation, byte[] payload) {
+        return new Message(type, sequenceNumber, incarnation, consensusType, consensusInstance, payload);
     }
 
     public MessageType getType() {
@@ -32,40 +75,92 @@ public class Message {
         return ackSequenceNumber;
     }
 
+    public long getIncarnation() {
+        return incarnation;
+    }
+
+    public ConsensusMessageType getConsensusType() {
+        return consensusType;
+    }
+
+    public int getConsensusInstance() {
+        return consensusInstance;
+    }
+
+    /**
+     * Payload as an array. For a received message this copies the payload out
+     * of the frame the first time it is called; prefer
+     * {@link #getPayloadBuffer} where a view is enough.
+     */
     public byte[] getPayload() {
-        return payload;
+        byte[] bytes = payload;
+        if (bytes == null && payloadView != null) {
+            bytes = new byte[payloadView.remaining()];
+            payloadView.duplicate().get(bytes);
+            payload = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Read-only view of the payload, without copying it
+     *
+     * @return The view, or null if the message has no payload
+     */
+    public ByteBuffer getPayloadBuffer() {
+        return payloadView == null ? null : payloadView.duplicate();
+    }
+
+    /**
+     * Size of the serialized message, without serializing it
+     */
+    public int serializedSize() {
+        return HEADER_SIZE + (payloadView == null ? 0 : payloadView.remaining());
+    }
+
+    /**
+     * Bytes the message takes inside a BATCH payload: its length prefix plus
+     * the serialized message
+     */
+    public int batchedSize() {
+        return Integer.BYTES + serializedSize();
     }
 
     /**
      * Serialize the message to bytes
      */
     public byte[] serialize() {
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
+        ByteBuffer buffer = ByteBuffer.allocate(serializedSize());
+        writeTo(buffer);
+        return buffer.array();
+    }
 
-            // Write message type
-            dos.writeInt(type.ordinal());
+    /**
+     * Write the serialized message at the buffer's position
+     */
+    public void writeTo(ByteBuffer out) {
+        // Write message type
+        out.putInt(type.ordinal());
 
-            // Write sequence number
-            dos.writeLong(sequenceNumber);
+        // Write sequence number
+        out.putLong(sequenceNumber);
 
-            // Write ack sequence number
-            dos.writeLong(ackSequenceNumber);
+        // Write ack sequence number
+        out.putLong(ackSequenceNumber);
 
-            // Write payload (may be null for ACK messages)
-            if (payload == null) {
-                dos.writeInt(-1);
-            } else {
-                dos.writeInt(payload.length);
-                dos.write(payload);
-            }
+        // Write sender incarnation
+        out.putLong(incarnation);
 
-            dos.flush();
-            return baos.toByteArray();
+        // Write consensus phase and instance
+        out.put((byte) (consensusType == null ? -1 : consensusType.ordinal()));
+        out.putInt(consensusInstance);
 
-        } catch (IOException e) {
-            throw new RuntimeException("Error serializing message", e);
+        // Write payload (may be null for ACK messages)
+        if (payloadView == null) {
+            out.putInt(-1);
+        } else {
+            out.putInt(payloadView.remaining());
+            out.put(payloadView.duplicate());
         }
     }
 
@@ -73,31 +168,179 @@ public class Message {
      * Deserialize bytes to a Message
      */
     public static Message deserialize(byte[] data) {
-        try {
-            ByteArrayInputStream bais = new ByteArrayInputStream(data);
-            DataInputStream dis = new DataInputStream(bais);
+        return readFrom(ByteBuffer.wrap(data));
+    }
 
+    /**
+     * Read a message at the buffer's position. The payload is a read-only view
+     * of the buffer, which must therefore not be modified afterwards.
+     */
+    public static Message readFrom(ByteBuffer in) {
+        try {
             // Read message type
-            MessageType type = MessageType.values()[dis.readInt()];
+            int typeOrdinal = in.getInt();
+            if (typeOrdinal < 0 || typeOrdinal >= MessageType.values().length) {
+                throw new RuntimeException("Error deserializing message: unknown type " + typeOrdinal);
+            }
+            MessageType type = MessageType.values()[typeOrdinal];
 
             // Read sequence number
-            long sequenceNumber = dis.readLong();
+            long sequenceNumber = in.getLong();
 
             // Read ack sequence number (discard, will be set in constructor)
-            dis.readLong();
+            in.getLong();
+
+            // Read sender incarnation
+            long incarnation = in.getLong();
+
+            // Read consensus phase and instance
+            int consensusOrdinal = in.get();
+            if (consensusOrdinal < -1 || consensusOrdinal >= ConsensusMessageType.values().length) {
+                throw new RuntimeException("Error deserializing message: unknown consensus type " + consensusOrdinal);
+            }
+            ConsensusMessageType consensusType = consensusOrdinal < 0 ? null
+                    : ConsensusMessageType.values()[consensusOrdinal];
+            int consensusInstance = in.getInt();
 
             // Read payload
-            int payloadLength = dis.readInt();
-            byte[] payload = null;
+            int payloadLength = in.getInt();
+            ByteBuffer payload = null;
             if (payloadLength >= 0) {
-                payload = new byte[payloadLength];
-                dis.readFully(payload);
+                payload = slice(in, payloadLength).asReadOnlyBuffer();
             }
 
-            return new Message(type, sequenceNumber, payload);
+            return new Message(type, sequenceNumber, incarnation, consensusType, consensusInstance, payload);
 
-        } catch (IOException e) {
+        } catch (BufferUnderflowException e) {
             throw new RuntimeException("Error deserializing message", e);
         }
     }
+
+    /**
+     * Pack several messages into the payload of a BATCH message
+     */
+    public static byte[] encodeBatch(List<Message> messages) {
+        int size = Integer.BYTES;
+        for (Message message : messages) {
+            size += message.batchedSize();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(messages.size());
+        for (Message message : messages) {
+            buffer.putInt(message.serializedSize());
+            message.writeTo(buffer);
+        }
+
+        return buffer.array();
+    }
+
+    /**
+     * Unpack the messages of a BATCH payload. The messages are views of the
+     * payload.
+     */
+    public static List<Message> decodeBatch(ByteBuffer payload) {
+        try {
+            int count = payload.getInt();
+            if (count < 0 || count > payload.remaining() / (Integer.BYTES + HEADER_SIZE)) {
+                throw new RuntimeException("Error deserializing message batch: bad count " + count);
+            }
+
+            List<Message> messages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                messages.add(readFrom(slice(payload, payload.getInt())));
+            }
+
+            return messages;
+
+        } catch (BufferUnderflowException e) {
+            throw new RuntimeException("Error deserializing message batch", e);
+        }
+    }
+
+    /**
+     * Bytes a BROADCAST payload takes for the given number of destinations
+     * and DATA payload
+     */
+    public static int broadcastSize(int destinations, int payloadLength) {
+        return Integer.BYTES + destinations * (Integer.BYTES + Long.BYTES) + Integer.BYTES + payloadLength;
+    }
+
+    /**
+     * Build the payload of a BROADCAST message: the link sequence number of
+     * every destination followed by the payload of the DATA message
+     */
+    public static byte[] encodeBroadcast(Map<Integer, Long> sequenceNumbers, ByteBuffer payload) {
+        int payloadLength = payload == null ? 0 : payload.remaining();
+        ByteBuffer buffer = ByteBuffer.allocate(broadcastSize(sequenceNumbers.size(), payloadLength));
+
+        buffer.putInt(sequenceNumbers.size());
+        for (Map.Entry<Integer, Long> entry : sequenceNumbers.entrySet()) {
+            buffer.putInt(entry.getKey());
+            buffer.putLong(entry.getValue());
+        }
+
+        if (payload == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(payloadLength);
+            buffer.put(payload.duplicate());
+        }
+
+        return buffer.array();
+    }
+
+    /**
+     * The DATA message a BROADCAST message carries for one destination, with
+     * that destination's sequence number. Its payload is a view of this
+     * message's payload.
+     *
+     * @return The message, or null if the broadcast is not addressed to the
+     *         destination
+     */
+    public Message unwrapBroadcast(int destination) {
+        try {
+            ByteBuffer in = getPayloadBuffer();
+            if (in == null) {
+                throw new RuntimeException("Error deserializing broadcast: no payload");
+            }
+            int count = in.getInt();
+            if (count < 0 || count > in.remaining() / (Integer.BYTES + Long.BYTES)) {
+                throw new RuntimeException("Error deserializing broadcast: bad count " + count);
+            }
+
+            long sequenceNumber = -1;
+            for (int i = 0; i < count; i++) {
+                int id = in.getInt();
+                long sequence = in.getLong();
+                if (id == destination) {
+                    sequenceNumber = sequence;
+                }
+            }
+            if (sequenceNumber < 0) {
+                return null;
+            }
+
+            int payloadLength = in.getInt();
+            ByteBuffer payload = payloadLength < 0 ? null : slice(in, payloadLength);
+            return new Message(MessageType.DATA, sequenceNumber, incarnation, consensusType, consensusInstance,
+                    payload);
+
+        } catch (BufferUnderflowException e) {
+            throw new RuntimeException("Error deserializing broadcast", e);
+        }
+    }
+
+    /**
+     * The next {@code length} bytes of a buffer as a buffer of their own,
+     * advancing past them
+     */
+    static ByteBuffer slice(ByteBuffer in, int length) {
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        ByteBuffer slice = in.slice(in.position(), length);
+        in.position(in.position() + length);
+        return slice;
+    }
 }
@@ -5,5 +5,10 @@ package communication;
  */
 public enum MessageType {
     DATA,
-    ACK
+    ACK,
+    HANDSHAKE, // Session key exchange, always RSA-signed
+    BATCH, // Several DATA/ACK messages for one destination, authenticated once
+    FRAGMENT, // Part of a DATA message too large for one datagram
+    BROADCAST, // One DATA message for every peer, signed once, with each peer's sequence number
+    SYNC // Highest sequence number below which the sender has nothing left to deliver, for a peer that lost track
 }
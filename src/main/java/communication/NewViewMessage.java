@@ -0,0 +1,24 @@
+package communication;
+
+/**
+ * NEW_VIEW message from the leader of a view, taking over the instances
+ * left in flight: it stands for a READ of every instance in
+ * (fromInstance, toInstance]
+ */
+public class NewViewMessage {
+    private final int fromInstance;
+    private final int toInstance;
+
+    public NewViewMessage(int fromInstance, int toInstance) {
+        this.fromInstance = fromInstance;
+        this.toInstance = toInstance;
+    }
+
+    public int getFromInstance() {
+        return fromInstance;
+    }
+
+    public int getToInstance() {
+        return toInstance;
+    }
+}
@@ -0,0 +1,240 @@
+package communication;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Non-blocking UDP transport based on DatagramChannel and Selector.
+ *
+ * Each I/O thread owns a selector and reads datagrams into buffers taken from a
+ * {@link BufferPool}. When the platform supports SO_REUSEPORT every thread gets
+ * its own channel bound to the same port, so the kernel spreads peers across
+ * threads; otherwise all selectors share a single channel.
+ *
+ * I/O threads only read datagrams: each one is handed to a single dispatcher
+ * thread, which copies it out of its pooled buffer and passes it on, so a slow
+ * receiver never stalls the selector loops. Datagrams the dispatcher has no
+ * room for, or no pooled buffer is left to read into, are dropped and
+ * counted, as a full socket buffer would; the link retransmits them.
+ */
+public class NioDatagramTransport implements Transport {
+
+    // Datagrams read and waiting for the dispatcher thread
+    private static final int DISPATCH_QUEUE_SIZE = 4096;
+
+    private final List<DatagramChannel> channels;
+    private final List<Selector> selectors;
+    private final List<Thread> ioThreads;
+    private final BufferPool bufferPool;
+    private final int threadCount;
+    private final ExecutorService dispatcher;
+    private final LongAdder droppedDatagrams;
+
+    private volatile boolean running;
+
+    /**
+     * Constructor
+     *
+     * @param port        UDP port to bind to
+     * @param threadCount Number of I/O threads
+     * @param bufferPool  Pool the receive buffers are taken from
+     */
+    public NioDatagramTransport(int port, int threadCount, BufferPool bufferPool) throws IOException {
+        this.bufferPool = bufferPool;
+        this.threadCount = threadCount;
+        this.channels = new ArrayList<>();
+        this.selectors = new ArrayList<>();
+        this.ioThreads = new ArrayList<>();
+        this.dispatcher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(DISPATCH_QUEUE_SIZE), runnable -> {
+                    Thread thread = new Thread(runnable, "apl-nio-dispatcher");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.droppedDatagrams = new LongAdder();
+
+        DatagramChannel first = DatagramChannel.open();
+        boolean reusePort = threadCount > 1
+                && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        int channelCount = reusePort ? threadCount : 1;
+
+        for (int i = 0; i < channelCount; i++) {
+            DatagramChannel channel = i == 0 ? first : DatagramChannel.open();
+            if (reusePort) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.configureBlocking(false);
+            channel.bind(new InetSocketAddress(port));
+            channels.add(channel);
+        }
+    }
+
+    @Override
+    public void start(Receiver receiver) throws IOException {
+        if (running) {
+            return;
+        }
+        running = true;
+
+        for (int i = 0; i < threadCount; i++) {
+            Selector selector = Selector.open();
+            DatagramChannel channel = channels.get(i % channels.size());
+            channel.register(selector, SelectionKey.OP_READ);
+            selectors.add(selector);
+
+            Thread thread = new Thread(() -> ioLoop(selector, receiver), "apl-nio-" + i);
+            thread.setDaemon(true);
+            thread.setUncaughtExceptionHandler((t, e) -> System.err.println(
+                    "I/O thread " + t.getName() + " stopped receiving UDP packets: " + e));
+            ioThreads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Send a datagram. The channel is non-blocking, so a full socket buffer drops
+     * the datagram and the link's retransmission takes care of it.
+     */
+    @Override
+    public void send(byte[] frame, InetSocketAddress destination) throws IOException {
+        channels.get(0).send(ByteBuffer.wrap(frame), destination);
+    }
+
+    /**
+     * Datagrams received and dropped because the dispatcher or the buffer
+     * pool was full
+     */
+    public long getDroppedDatagrams() {
+        return droppedDatagrams.sum();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        dispatcher.shutdown();
+
+        for (Selector selector : selectors) {
+            selector.wakeup();
+        }
+        for (Thread thread : ioThreads) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Selector selector : selectors) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Error closing selector: " + e.getMessage());
+            }
+        }
+        for (DatagramChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing datagram channel: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Selector loop run by every I/O thread
+     */
+    private void ioLoop(Selector selector, Receiver receiver) {
+        // Datagrams that cannot be dispatched are read into this buffer and dropped
+        ByteBuffer discard = ByteBuffer.allocate(bufferPool.getBufferSize());
+
+        while (running) {
+            try {
+                selector.select();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (key.isValid() && key.isReadable()) {
+                        drain((DatagramChannel) key.channel(), receiver, discard);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error receiving UDP packet: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Read every datagram currently queued on the channel
+     */
+    private void drain(DatagramChannel channel, Receiver receiver, ByteBuffer discard) throws IOException {
+        while (running) {
+            ByteBuffer buffer = bufferPool.acquire();
+            if (buffer == null) {
+                // Every buffer is waiting for the dispatcher: drop the datagram
+                discard.clear();
+                if (channel.receive(discard) == null) {
+                    return;
+                }
+                droppedDatagrams.increment();
+                continue;
+            }
+            SocketAddress source = channel.receive(buffer);
+
+            if (source == null) {
+                // Nothing left, or another thread sharing the channel got it first
+                bufferPool.release(buffer);
+                return;
+            }
+
+            buffer.flip();
+            dispatch(buffer, receiver);
+        }
+    }
+
+    /**
+     * Hand a datagram to the dispatcher thread
+     */
+    private void dispatch(ByteBuffer packet, Receiver receiver) {
+        try {
+            dispatcher.execute(() -> {
+                try {
+                    byte[] data = new byte[packet.remaining()];
+                    packet.get(data);
+                    bufferPool.release(packet);
+
+                    receiver.onFrame(data);
+                } catch (Exception e) {
+                    System.err.println("Error processing incoming message: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Dispatcher queue full, or transport shutting down
+            if (running) {
+                droppedDatagrams.increment();
+            }
+            bufferPool.release(packet);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package communication;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces the messages queued for the same destination so they can be sent
+ * as one authenticated frame.
+ *
+ * A destination's queue is flushed when its serialized size reaches the size
+ * budget, or when the flush interval has elapsed since its first message was
+ * queued, whichever comes first.
+ */
+public class OutboundBatcher {
+
+    /**
+     * Sends the messages collected for a destination
+     */
+    public interface Flusher {
+        void flush(int destination, List<Message> messages);
+    }
+
+    private final long flushIntervalMicros;
+    private final int sizeBudget;
+    private final Flusher flusher;
+    private final Map<Integer, Batch> batches;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Constructor
+     *
+     * @param flushIntervalMicros Maximum time a message waits for company
+     * @param sizeBudget          Serialized bytes that trigger an immediate flush
+     * @param flusher             Sends a flushed batch
+     */
+    public OutboundBatcher(long flushIntervalMicros, int sizeBudget, Flusher flusher) {
+        this.flushIntervalMicros = flushIntervalMicros;
+        this.sizeBudget = sizeBudget;
+        this.flusher = flusher;
+        this.batches = new ConcurrentHashMap<>();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "apl-batch-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queue a message for a destination
+     *
+     * @param size Serialized size of the message
+     */
+    public void enqueue(int destination, Message message, int size) {
+        Batch batch = batches.computeIfAbsent(destination, id -> new Batch());
+        List<List<Message>> ready = new ArrayList<>(2);
+        boolean schedule = false;
+
+        synchronized (batch) {
+            if (!batch.messages.isEmpty() && batch.size + size > sizeBudget) {
+                // Doesn't fit: send what we have and start a new batch
+                ready.add(batch.drain());
+            }
+
+            batch.messages.add(message);
+            batch.size += size;
+
+            if (batch.size >= sizeBudget) {
+                ready.add(batch.drain());
+            } else if (!batch.scheduled) {
+                batch.scheduled = true;
+                schedule = true;
+            }
+        }
+
+        for (List<Message> messages : ready) {
+            flusher.flush(destination, messages);
+        }
+        if (schedule) {
+            try {
+                scheduler.schedule(() -> flush(destination), flushIntervalMicros, TimeUnit.MICROSECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+            }
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Timer callback: send whatever the destination has queued
+     */
+    private void flush(int destination) {
+        Batch batch = batches.get(destination);
+        List<Message> ready;
+
+        synchronized (batch) {
+            batch.scheduled = false;
+            if (batch.messages.isEmpty()) {
+                return;
+            }
+            ready = batch.drain();
+        }
+
+        flusher.flush(destination, ready);
+    }
+
+    private static class Batch {
+        private List<Message> messages = new ArrayList<>();
+        private int size;
+        private boolean scheduled;
+
+        private List<Message> drain() {
+            List<Message> drained = messages;
+            messages = new ArrayList<>();
+            size = 0;
+            return drained;
+        }
+    }
+}
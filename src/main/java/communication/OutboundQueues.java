@@ -0,0 +1,198 @@
+package communication;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import consensus.ProcessInfo;
+
+/**
+ * Per-peer outbound queues drained by a single sender thread.
+ *
+ * Callers only enqueue frames; the sender thread writes them to the socket,
+ * visiting the peers with pending frames round-robin so one busy peer cannot
+ * starve the others. A frame may also be queued as a supplier that builds it
+ * on the sender thread, for callers such as timer tasks that must not sign.
+ * The address of every peer is resolved once, up front.
+ *
+ * Backpressure is applied to new messages, not to frames: each peer may have
+ * at most {@code depth} messages queued or awaiting its acknowledgment. A
+ * message has to {@link #reserve} a slot before it is sent and gives it back
+ * with {@link #release} once acknowledged, so a slow or dead peer fills its
+ * own queue without affecting traffic to the others.
+ */
+public class OutboundQueues {
+
+    /**
+     * Writes a frame to the network
+     */
+    public interface Writer {
+        void write(byte[] frame, InetSocketAddress address) throws IOException;
+    }
+
+    private static final int BURST = 16; // Frames written for a peer before moving to the next
+
+    private final int depth;
+    private final Writer writer;
+    private final Map<Integer, Peer> peers;
+    private final BlockingQueue<Peer> ready;
+    private final Thread sender;
+
+    private volatile boolean running;
+
+    /**
+     * Constructor
+     *
+     * @param processes Peers and their addresses
+     * @param depth     Messages per peer that may be queued or unacknowledged
+     * @param writer    Writes frames to the network
+     */
+    public OutboundQueues(Map<Integer, ProcessInfo> processes, int depth, Writer writer) {
+        this.depth = depth;
+        this.writer = writer;
+        this.peers = new ConcurrentHashMap<>();
+        this.ready = new LinkedBlockingQueue<>();
+        for (Map.Entry<Integer, ProcessInfo> entry : processes.entrySet()) {
+            ProcessInfo info = entry.getValue();
+            peers.put(entry.getKey(), new Peer(new InetSocketAddress(info.getHost(), info.getPort())));
+        }
+        this.sender = new Thread(this::run, "apl-sender");
+        this.sender.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        sender.start();
+    }
+
+    public void stop() {
+        running = false;
+        sender.interrupt();
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Take slots for new messages to a peer
+     *
+     * @return false if the peer's queue has no room for all of them
+     */
+    public boolean reserve(int peer, int messages) {
+        AtomicInteger outstanding = peers.get(peer).outstanding;
+        while (true) {
+            int current = outstanding.get();
+            if (current + messages > depth) {
+                return false;
+            }
+            if (outstanding.compareAndSet(current, current + messages)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back the slots of acknowledged messages
+     */
+    public void release(int peer, int messages) {
+        peers.get(peer).outstanding.addAndGet(-messages);
+    }
+
+    /**
+     * Messages to a peer that are queued or not yet acknowledged
+     */
+    public int outstanding(int peer) {
+        return peers.get(peer).outstanding.get();
+    }
+
+    /**
+     * Queue a frame for a peer. Never blocks.
+     */
+    public void enqueue(int peer, byte[] frame) {
+        enqueue(peer, () -> frame);
+    }
+
+    /**
+     * Queue a frame for a peer, built on the sender thread when its turn
+     * comes. Never blocks.
+     *
+     * @param frame Builds the frame, or returns null if there is nothing left to send
+     */
+    public void enqueue(int peer, Supplier<byte[]> frame) {
+        Peer target = peers.get(peer);
+        target.frames.add(frame);
+        if (target.scheduled.compareAndSet(false, true)) {
+            ready.add(target);
+        }
+    }
+
+    private void run() {
+        while (running) {
+            Peer peer;
+            try {
+                peer = ready.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            for (int i = 0; i < BURST; i++) {
+                Supplier<byte[]> frame = peer.frames.poll();
+                if (frame == null) {
+                    break;
+                }
+                write(peer, frame);
+            }
+
+            if (!peer.frames.isEmpty()) {
+                ready.add(peer); // Back of the line
+                continue;
+            }
+            peer.scheduled.set(false);
+            // A frame may have been added after the last poll but before the flag was cleared
+            if (!peer.frames.isEmpty() && peer.scheduled.compareAndSet(false, true)) {
+                ready.add(peer);
+            }
+        }
+    }
+
+    private void write(Peer peer, Supplier<byte[]> supplier) {
+        try {
+            byte[] frame = supplier.get();
+            if (frame == null) {
+                return;
+            }
+
+            InetSocketAddress address = peer.address;
+            if (address.isUnresolved()) {
+                // Name resolution failed at startup; try again
+                address = new InetSocketAddress(address.getHostString(), address.getPort());
+                peer.address = address;
+            }
+            writer.write(frame, address);
+        } catch (IOException | RuntimeException e) {
+            if (running) {
+                System.err.println("Error sending UDP packet: " + e.getMessage());
+            }
+        }
+    }
+
+    private static class Peer {
+        private final Queue<Supplier<byte[]>> frames = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile InetSocketAddress address;
+
+        private Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+}
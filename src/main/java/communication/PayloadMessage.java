@@ -0,0 +1,23 @@
+package communication;
+
+/**
+ * PAYLOAD message carrying the value behind a digest, when consensus runs on
+ * value digests
+ */
+public class PayloadMessage {
+    private final int instance;
+    private final String value;
+
+    public PayloadMessage(int instance, String value) {
+        this.instance = instance;
+        this.value = value;
+    }
+
+    public int getInstance() {
+        return instance;
+    }
+
+    public String getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,41 @@
+package communication;
+
+import java.util.Set;
+
+/**
+ * Reliable, authenticated delivery of messages between processes, as the
+ * consensus uses it. {@link AuthenticatedPerfectLink} provides it over a
+ * real {@link Transport}; a simulation can provide it over a virtual network.
+ */
+public interface PerfectLink {
+
+    /**
+     * Send a message to a destination
+     */
+    void send(Message message, int destination);
+
+    /**
+     * Send a message to a destination unless its send queue is full
+     *
+     * @return false if the message was not sent
+     */
+    boolean trySend(Message message, int destination);
+
+    /**
+     * Send a message to every other process
+     *
+     * @return Destinations the message was not sent to; empty if it went to
+     *         every one
+     */
+    Set<Integer> broadcast(Message message);
+
+    /**
+     * Receive every message delivered to this process
+     */
+    void registerDeliverCallback(DeliverCallback callback);
+
+    /**
+     * Be told when a destination that refused messages can take more
+     */
+    void registerCapacityCallback(CapacityCallback callback);
+}
@@ -0,0 +1,61 @@
+package communication;
+
+/**
+ * Round-trip time estimator for one destination, following RFC 6298.
+ *
+ * Only messages acknowledged on their first transmission should be sampled
+ * (Karn's algorithm), otherwise an ACK for an earlier copy would shrink the
+ * estimate.
+ */
+public class RttEstimator {
+
+    private final long minRtoMs;
+    private final long maxRtoMs;
+
+    private double srttMs;
+    private double rttVarMs;
+    private long rtoMs;
+    private boolean sampled;
+
+    public RttEstimator(long initialRtoMs, long minRtoMs, long maxRtoMs) {
+        this.minRtoMs = minRtoMs;
+        this.maxRtoMs = maxRtoMs;
+        this.rtoMs = clamp(initialRtoMs);
+    }
+
+    /**
+     * Record a round-trip measurement
+     */
+    public synchronized void sample(long rttMs) {
+        if (!sampled) {
+            srttMs = rttMs;
+            rttVarMs = rttMs / 2.0;
+            sampled = true;
+        } else {
+            rttVarMs = 0.75 * rttVarMs + 0.25 * Math.abs(srttMs - rttMs);
+            srttMs = 0.875 * srttMs + 0.125 * rttMs;
+        }
+        rtoMs = clamp((long) Math.ceil(srttMs + Math.max(1, 4 * rttVarMs)));
+    }
+
+    /**
+     * Retransmission timeout for a message that has already been sent the given
+     * number of times, doubling on every attempt
+     */
+    public synchronized long timeoutFor(int attempts) {
+        long timeout = rtoMs << Math.min(attempts, 20);
+        return clamp(timeout);
+    }
+
+    public synchronized long getRtoMs() {
+        return rtoMs;
+    }
+
+    public synchronized double getSrttMs() {
+        return srttMs;
+    }
+
+    private long clamp(long value) {
+        return Math.max(minRtoMs, Math.min(maxRtoMs, value));
+    }
+}
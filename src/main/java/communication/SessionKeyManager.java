@@ -0,0 +1,280 @@
+package communication;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Per-peer symmetric keys used to authenticate link messages with HMAC-SHA256
+ * instead of an RSA signature per datagram.
+ *
+ * Keys are directional: every process picks the key for its own outbound
+ * traffic to a peer and ships it in a HANDSHAKE message, encrypted with the
+ * peer's RSA public key and RSA-signed like any other link message. The key
+ * is only used once the peer has acknowledged the handshake; until then
+ * messages keep their RSA signature. The previous inbound key of every peer is
+ * kept so frames already in flight during a re-key still verify.
+ *
+ * A process that stops verifying a peer's MACs asks it for a new key with a
+ * HANDSHAKE carrying no key. Its sequence number is a request ID that only
+ * grows, like epochs, so a replayed request is ignored; the peer also answers
+ * at most one request per second.
+ */
+public class SessionKeyManager {
+
+    public static final int TAG_LENGTH = 32; // HMAC-SHA256 output
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String KEY_WRAP_ALGORITHM = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+    private static final int KEY_LENGTH = 32;
+    private static final long HANDSHAKE_RETRY_MS = 1000;
+
+    private final PrivateKey privateKey;
+    private final SecureRandom random;
+    private final Map<Integer, SessionKey> outbound;
+    private final Map<Integer, SessionKey> pendingOutbound;
+    private final Map<Integer, SessionKey[]> inbound; // {current, previous}
+    private final Map<Integer, Long> lastHandshake;
+    private final Map<Integer, Long> lastRekeyRequest;
+    private final AtomicLong rekeyRequestId; // ID of the last re-key request sent
+    private final Map<Integer, long[]> acceptedRekey; // {request ID, time} of the last request served, by peer
+    private final ThreadLocal<Mac> macs;
+
+    public SessionKeyManager(PrivateKey privateKey) {
+        this.privateKey = privateKey;
+        this.random = new SecureRandom();
+        this.outbound = new ConcurrentHashMap<>();
+        this.pendingOutbound = new ConcurrentHashMap<>();
+        this.inbound = new ConcurrentHashMap<>();
+        this.lastHandshake = new ConcurrentHashMap<>();
+        this.lastRekeyRequest = new ConcurrentHashMap<>();
+        this.rekeyRequestId = new AtomicLong();
+        this.acceptedRekey = new ConcurrentHashMap<>();
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                return Mac.getInstance(MAC_ALGORITHM);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException("HMAC-SHA256 not available", e);
+            }
+        });
+    }
+
+    /**
+     * Whether an acknowledged key exists for traffic to the given peer
+     */
+    public boolean hasOutboundKey(int peer) {
+        return outbound.containsKey(peer);
+    }
+
+    /**
+     * Whether a new handshake should be sent to the peer. Handshakes are
+     * rate-limited per peer, so losing one just delays the switch to MACs.
+     */
+    public boolean shouldHandshake(int peer) {
+        if (outbound.containsKey(peer)) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        Long last = lastHandshake.get(peer);
+        return last == null || now - last >= HANDSHAKE_RETRY_MS;
+    }
+
+    /**
+     * Create a fresh outbound key for a peer and build the HANDSHAKE payload:
+     * the key epoch followed by the key encrypted with the peer's public key.
+     * The epoch doubles as the handshake's sequence number so its ACK can be
+     * matched.
+     */
+    public byte[] newHandshake(int peer, PublicKey peerPublicKey) {
+        try {
+            byte[] key = new byte[KEY_LENGTH];
+            random.nextBytes(key);
+            long epoch = nextEpoch(peer);
+
+            Cipher cipher = Cipher.getInstance(KEY_WRAP_ALGORITHM);
+            cipher.init(Cipher.ENCRYPT_MODE, peerPublicKey);
+            byte[] wrapped = cipher.doFinal(key);
+
+            pendingOutbound.put(peer, new SessionKey(epoch, key));
+            lastHandshake.put(peer, System.currentTimeMillis());
+
+            return ByteBuffer.allocate(Long.BYTES + wrapped.length).putLong(epoch).put(wrapped).array();
+
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Failed to create session key: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Read the key epoch out of a HANDSHAKE payload
+     */
+    public static long handshakeEpoch(byte[] payload) {
+        return ByteBuffer.wrap(payload).getLong();
+    }
+
+    /**
+     * Promote the pending key of a peer once it acknowledged the handshake
+     */
+    public void onAck(int peer, long ackSequenceNumber) {
+        SessionKey pending = pendingOutbound.get(peer);
+        if (pending != null && pending.epoch == ackSequenceNumber) {
+            pendingOutbound.remove(peer);
+            outbound.put(peer, pending);
+        }
+    }
+
+    /**
+     * Install the key a peer sent in a HANDSHAKE. Older epochs are ignored so
+     * a replayed handshake cannot roll the key back.
+     *
+     * @return true if the handshake carried a valid key
+     */
+    public boolean acceptHandshake(int peer, byte[] payload) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            long epoch = buffer.getLong();
+            byte[] wrapped = new byte[buffer.remaining()];
+            buffer.get(wrapped);
+
+            Cipher cipher = Cipher.getInstance(KEY_WRAP_ALGORITHM);
+            cipher.init(Cipher.DECRYPT_MODE, privateKey);
+            byte[] key = cipher.doFinal(wrapped);
+            if (key.length != KEY_LENGTH) {
+                return false;
+            }
+
+            SessionKey received = new SessionKey(epoch, key);
+            inbound.compute(peer, (id, keys) -> {
+                if (keys == null) {
+                    return new SessionKey[] { received, null };
+                }
+                if (epoch <= keys[0].epoch) {
+                    return keys;
+                }
+                return new SessionKey[] { received, keys[0] };
+            });
+            return true;
+
+        } catch (GeneralSecurityException | RuntimeException e) {
+            System.err.println("Invalid session handshake from " + peer + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Forget the outbound key of a peer, e.g. after it asked for a new one
+     */
+    public void resetOutbound(int peer) {
+        outbound.remove(peer);
+        lastHandshake.remove(peer);
+    }
+
+    /**
+     * Whether a re-key request may be sent to a peer whose MACs stopped
+     * verifying. Rate-limited so garbage traffic cannot trigger RSA work.
+     */
+    public boolean shouldRequestRekey(int peer) {
+        long now = System.currentTimeMillis();
+        Long last = lastRekeyRequest.get(peer);
+        if (last != null && now - last < HANDSHAKE_RETRY_MS) {
+            return false;
+        }
+        lastRekeyRequest.put(peer, now);
+        return true;
+    }
+
+    /**
+     * ID of a new re-key request: above every earlier one, even across
+     * restarts, because IDs start from the clock
+     */
+    public long newRekeyRequest() {
+        long now = System.currentTimeMillis();
+        return rekeyRequestId.updateAndGet(last -> Math.max(now, last + 1));
+    }
+
+    /**
+     * Whether to answer a peer's re-key request with a new key: only if its
+     * ID is above the last one answered, and at most once per retry interval
+     */
+    public boolean acceptRekeyRequest(int peer, long requestId) {
+        long now = System.currentTimeMillis();
+        boolean[] accepted = new boolean[1];
+        acceptedRekey.compute(peer, (id, last) -> {
+            if (last != null && (requestId <= last[0] || now - last[1] < HANDSHAKE_RETRY_MS)) {
+                return last;
+            }
+            accepted[0] = true;
+            return new long[] { requestId, now };
+        });
+        return accepted[0];
+    }
+
+    /**
+     * Compute the tag for data sent to a peer
+     *
+     * @return The tag, or null if no key has been acknowledged by the peer yet
+     */
+    public byte[] tag(int peer, ByteBuffer data) {
+        SessionKey key = outbound.get(peer);
+        return key != null ? compute(key, data) : null;
+    }
+
+    /**
+     * Check the tag on data received from a peer against its current and
+     * previous keys
+     */
+    public boolean verify(int peer, ByteBuffer data, byte[] tag) {
+        SessionKey[] keys = inbound.get(peer);
+        if (keys == null) {
+            return false;
+        }
+        for (SessionKey key : keys) {
+            if (key != null && MessageDigest.isEqual(compute(key, data), tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private byte[] compute(SessionKey key, ByteBuffer data) {
+        try {
+            Mac mac = macs.get();
+            mac.init(key.spec);
+            mac.update(data.duplicate());
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Failed to compute MAC: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Epochs only grow, even across restarts, because they start from the clock
+     */
+    private long nextEpoch(int peer) {
+        long now = System.currentTimeMillis();
+        SessionKey current = outbound.get(peer);
+        SessionKey pending = pendingOutbound.get(peer);
+        long last = Math.max(current != null ? current.epoch : 0, pending != null ? pending.epoch : 0);
+        return Math.max(now, last + 1);
+    }
+
+    private static class SessionKey {
+        private final long epoch;
+        private final SecretKeySpec spec;
+
+        private SessionKey(long epoch, byte[] key) {
+            this.epoch = epoch;
+            this.spec = new SecretKeySpec(key, MAC_ALGORITHM);
+        }
+    }
+}
@@ -1,23 +1,60 @@
 package communication;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Signed message wrapper
+ *
+ * Wire format: sender ID, authentication type, length-prefixed message and
+ * length-prefixed signature. Frames are written in a single pass with the
+ * signature computed over the message bytes in place, and decoded frames keep
+ * those bytes as a view so verifying never serializes the message again.
  */
 public class SignedMessage {
+
+    /**
+     * How the message is authenticated
+     */
+    public enum AuthType {
+        SIGNATURE, // RSA signature with the sender's private key
+        MAC // HMAC-SHA256 with the session key shared with the destination
+    }
+
+    /**
+     * Computes the signature of the serialized message
+     */
+    public interface Signer {
+        /**
+         * @param content Read-only view of the serialized message
+         * @return The signature, or null if the message cannot be signed this way
+         */
+        byte[] sign(ByteBuffer content);
+    }
+
+    // sender ID + authentication type + message length + signature length
+    public static final int FRAME_HEADER_SIZE = Integer.BYTES + 1 + Integer.BYTES + Integer.BYTES;
+
     private final Message message;
     private final byte[] signature;
     private final int senderId;
+    private final AuthType authType;
+    private final ByteBuffer content; // Serialized message as received, null for messages built locally
 
     public SignedMessage(Message message, byte[] signature, int senderId) {
+        this(message, signature, senderId, AuthType.SIGNATURE);
+    }
+
+    public SignedMessage(Message message, byte[] signature, int senderId, AuthType authType) {
+        this(message, signature, senderId, authType, null);
+    }
+
+    private SignedMessage(Message message, byte[] signature, int senderId, AuthType authType, ByteBuffer content) {
         this.message = message;
         this.signature = signature;
         this.senderId = senderId;
+        this.authType = authType;
+        this.content = content;
     }
 
     public Message getMessage() {
@@ -32,60 +69,95 @@ public class SignedMessage {
         return senderId;
     }
 
+    public AuthType getAuthType() {
+        return authType;
+    }
+
+    /**
+     * Read-only view of the bytes the signature covers
+     */
+    public ByteBuffer getSignedContent() {
+        if (content != null) {
+            return content.duplicate();
+        }
+        return ByteBuffer.wrap(message.serialize()).asReadOnlyBuffer();
+    }
+
     /**
      * Serialize the signed message to bytes
      */
     public byte[] serialize() {
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
-
-            // Write sender ID
-            dos.writeInt(senderId);
-
-            // Write serialized message
-            byte[] messageBytes = message.serialize();
-            dos.writeInt(messageBytes.length);
-            dos.write(messageBytes);
-
-            // Write signature
-            dos.writeInt(signature.length);
-            dos.write(signature);
-
-            dos.flush();
-            return baos.toByteArray();
+        return encode(message, senderId, authType, signature.length, content -> signature);
+    }
 
-        } catch (IOException e) {
-            throw new RuntimeException("Error serializing signed message", e);
+    /**
+     * Write a frame in one pass: headers and message first, then the signature
+     * computed over the message bytes already in the frame
+     *
+     * @param signatureLength Exact length of the signature the signer returns
+     * @return The frame, or null if the signer declined
+     */
+    public static byte[] encode(Message message, int senderId, AuthType authType, int signatureLength,
+            Signer signer) {
+        int messageLength = message.serializedSize();
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + messageLength + signatureLength);
+
+        // Write sender ID
+        frame.putInt(senderId);
+
+        // Write authentication type
+        frame.put((byte) authType.ordinal());
+
+        // Write serialized message
+        frame.putInt(messageLength);
+        int messageStart = frame.position();
+        message.writeTo(frame);
+
+        // Write signature
+        byte[] signature = signer.sign(frame.slice(messageStart, messageLength).asReadOnlyBuffer());
+        if (signature == null) {
+            return null;
+        }
+        if (signature.length != signatureLength) {
+            throw new IllegalStateException("Expected a signature of " + signatureLength + " bytes, got "
+                    + signature.length);
         }
+        frame.putInt(signature.length);
+        frame.put(signature);
+
+        return frame.array();
     }
 
     /**
-     * Deserialize bytes to a SignedMessage
+     * Deserialize bytes to a SignedMessage. The message and its payload are
+     * views of the given array, which must not be modified afterwards.
      */
     public static SignedMessage deserialize(byte[] data) {
         try {
-            ByteArrayInputStream bais = new ByteArrayInputStream(data);
-            DataInputStream dis = new DataInputStream(bais);
+            ByteBuffer frame = ByteBuffer.wrap(data);
 
             // Read sender ID
-            int senderId = dis.readInt();
+            int senderId = frame.getInt();
+
+            // Read authentication type
+            int authOrdinal = frame.get();
+            if (authOrdinal < 0 || authOrdinal >= AuthType.values().length) {
+                throw new RuntimeException("Error deserializing signed message: unknown authentication type");
+            }
+            AuthType authType = AuthType.values()[authOrdinal];
 
             // Read serialized message
-            int messageLength = dis.readInt();
-            byte[] messageBytes = new byte[messageLength];
-            dis.readFully(messageBytes);
-            Message message = Message.deserialize(messageBytes);
+            ByteBuffer content = Message.slice(frame, frame.getInt()).asReadOnlyBuffer();
+            Message message = Message.readFrom(content.duplicate());
 
             // Read signature
-            int signatureLength = dis.readInt();
-            byte[] signature = new byte[signatureLength];
-            dis.readFully(signature);
+            byte[] signature = new byte[frame.getInt()];
+            frame.get(signature);
 
-            return new SignedMessage(message, signature, senderId);
+            return new SignedMessage(message, signature, senderId, authType, content);
 
-        } catch (IOException e) {
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
             throw new RuntimeException("Error deserializing signed message", e);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,302 @@
+package communication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Transport over long-lived TCP connections, for deployments where a stream
+ * is cheaper than one datagram per frame.
+ *
+ * Every frame is written as a 4-byte length followed by its bytes. Each
+ * destination gets one outgoing connection with a writer thread of its own,
+ * which drains everything queued for the peer into a single buffered write.
+ * A broken connection is re-established with exponential backoff; frames
+ * written to it may be lost, which the link recovers from by retransmitting,
+ * as it would over UDP. Incoming connections are only read from, and their
+ * frames are handed to the receiver by a single dispatcher thread.
+ *
+ * A connection starts with the listening port of the process that opened it.
+ * Only known peers are read from, one connection each: a peer that connects
+ * again replaces its previous connection. At most two connections per peer
+ * may be open at once, counting those that did not identify themselves yet.
+ */
+public class TcpTransport implements Transport {
+
+    private static final int QUEUE_CAPACITY = 4096; // Frames queued per destination before new ones are dropped
+    private static final int WRITE_BATCH_BYTES = 64 * 1024; // Bytes gathered into one write
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final long MIN_RECONNECT_DELAY_MS = 50;
+    private static final long MAX_RECONNECT_DELAY_MS = 2000;
+
+    private final ServerSocket serverSocket;
+    private final int maxFrameSize;
+    private final Set<InetSocketAddress> peers; // Listening addresses of the processes that may connect
+    private final Map<InetSocketAddress, Connection> connections;
+    private final Set<Socket> incoming;
+    private final Map<InetSocketAddress, Socket> peerConnections; // Identified incoming connection of each peer
+    private final ExecutorService dispatcher;
+    private final ExecutorService readers;
+
+    private volatile boolean running;
+
+    /**
+     * Constructor
+     *
+     * @param port         TCP port to accept connections on
+     * @param maxFrameSize Largest frame accepted from a peer; a peer sending a
+     *                     larger one is disconnected
+     * @param peers        Listening addresses of the processes allowed to
+     *                     connect
+     */
+    public TcpTransport(int port, int maxFrameSize, Collection<InetSocketAddress> peers) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.maxFrameSize = maxFrameSize;
+        this.peers = new HashSet<>(peers);
+        this.connections = new ConcurrentHashMap<>();
+        this.incoming = ConcurrentHashMap.newKeySet();
+        this.peerConnections = new ConcurrentHashMap<>();
+        this.dispatcher = Executors.newSingleThreadExecutor();
+        this.readers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "tcp-reader-" + port);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void start(Receiver receiver) {
+        if (running) {
+            return;
+        }
+        running = true;
+        readers.execute(() -> acceptLoop(receiver));
+    }
+
+    @Override
+    public void send(byte[] frame, InetSocketAddress destination) {
+        if (!running) {
+            return;
+        }
+        Connection connection = connections.computeIfAbsent(destination, Connection::new);
+        // A full queue means the peer is unreachable or too slow: drop the frame
+        connection.queue.offer(frame);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        for (Connection connection : connections.values()) {
+            connection.close();
+        }
+        for (Socket socket : incoming) {
+            closeQuietly(socket);
+        }
+        readers.shutdownNow();
+        dispatcher.shutdown();
+    }
+
+    /**
+     * Accept incoming connections, reading each one on a thread of its own
+     */
+    private void acceptLoop(Receiver receiver) {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (incoming.size() >= 2 * peers.size()) {
+                    System.err.println("Too many incoming TCP connections, refusing "
+                            + socket.getRemoteSocketAddress());
+                    closeQuietly(socket);
+                    continue;
+                }
+                socket.setTcpNoDelay(true);
+                incoming.add(socket);
+                readers.execute(() -> readLoop(socket, receiver));
+
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting TCP connection: " + e.getMessage());
+                }
+            } catch (RejectedExecutionException e) {
+                // Transport closed
+            }
+        }
+    }
+
+    /**
+     * Identify the peer of an incoming connection, then read length-prefixed
+     * frames from it until it closes
+     */
+    private void readLoop(Socket socket, Receiver receiver) {
+        InetSocketAddress peer = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+            InetSocketAddress claimed = new InetSocketAddress(socket.getInetAddress(), in.readUnsignedShort());
+            socket.setSoTimeout(0);
+            if (!peers.contains(claimed)) {
+                System.err.println("TCP connection from unknown peer " + claimed + ", closing connection");
+                return;
+            }
+            peer = claimed;
+            Socket previous = peerConnections.put(peer, socket);
+            if (previous != null) {
+                // The peer reconnected: its old connection is dead or a duplicate
+                closeQuietly(previous);
+            }
+
+            while (running) {
+                int length = in.readInt();
+                if (length <= 0 || length > maxFrameSize) {
+                    System.err.println("Invalid TCP frame length " + length + " from "
+                            + socket.getRemoteSocketAddress() + ", closing connection");
+                    break;
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                dispatch(frame, receiver);
+            }
+        } catch (EOFException e) {
+            // Peer closed the connection
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Error reading TCP connection: " + e.getMessage());
+            }
+        } finally {
+            incoming.remove(socket);
+            if (peer != null) {
+                peerConnections.remove(peer, socket);
+            }
+            closeQuietly(socket);
+        }
+    }
+
+    private void dispatch(byte[] frame, Receiver receiver) {
+        try {
+            dispatcher.execute(() -> {
+                try {
+                    receiver.onFrame(frame);
+                } catch (Exception e) {
+                    System.err.println("Error processing incoming message: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Transport closed
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to do
+        }
+    }
+
+    /**
+     * Outgoing connection to one destination and the frames queued for it
+     */
+    private class Connection {
+        private final InetSocketAddress address;
+        private final BlockingQueue<byte[]> queue;
+        private final Thread writer;
+        private volatile Socket socket;
+
+        private Connection(InetSocketAddress address) {
+            this.address = address;
+            this.queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+            this.writer = new Thread(this::writeLoop, "tcp-writer-" + address.getPort());
+            this.writer.setDaemon(true);
+            this.writer.start();
+        }
+
+        private void writeLoop() {
+            long reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+            List<byte[]> batch = new ArrayList<>();
+
+            while (running) {
+                Socket current = new Socket();
+                try {
+                    current.setTcpNoDelay(true);
+                    current.connect(address, CONNECT_TIMEOUT_MS);
+                    socket = current;
+                    reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+
+                    DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(current.getOutputStream(), WRITE_BATCH_BYTES));
+                    out.writeShort(serverSocket.getLocalPort());
+                    out.flush();
+                    while (running) {
+                        batch.add(queue.take());
+                        drain(batch);
+                        for (byte[] frame : batch) {
+                            out.writeInt(frame.length);
+                            out.write(frame);
+                        }
+                        batch.clear();
+                        out.flush();
+                    }
+
+                } catch (InterruptedException e) {
+                    break;
+                } catch (IOException e) {
+                    batch.clear();
+                    if (!running) {
+                        break;
+                    }
+                    try {
+                        Thread.sleep(reconnectDelayMs);
+                    } catch (InterruptedException interrupted) {
+                        break;
+                    }
+                    reconnectDelayMs = Math.min(reconnectDelayMs * 2, MAX_RECONNECT_DELAY_MS);
+                } finally {
+                    socket = null;
+                    closeQuietly(current);
+                }
+            }
+        }
+
+        /**
+         * Move queued frames into the batch, up to one write's worth of bytes
+         */
+        private void drain(List<byte[]> batch) {
+            int bytes = batch.get(0).length;
+            byte[] next;
+            while (bytes < WRITE_BATCH_BYTES && (next = queue.peek()) != null) {
+                bytes += Integer.BYTES + next.length;
+                batch.add(queue.poll());
+            }
+        }
+
+        private void close() {
+            writer.interrupt();
+            Socket current = socket;
+            if (current != null) {
+                closeQuietly(current);
+            }
+        }
+    }
+}
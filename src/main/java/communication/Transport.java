@@ -0,0 +1,35 @@
+package communication;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Moves serialized frames between processes for the AuthenticatedPerfectLink.
+ *
+ * A transport is unreliable like UDP: frames may be lost, duplicated or
+ * reordered, and the link above it takes care of authentication,
+ * retransmission and deduplication.
+ */
+public interface Transport {
+
+    /**
+     * Receives every frame read by the transport. It is called from one thread
+     * at a time and owns the array it is given.
+     */
+    interface Receiver {
+        void onFrame(byte[] frame);
+    }
+
+    /**
+     * Start delivering received frames
+     */
+    void start(Receiver receiver) throws IOException;
+
+    /**
+     * Send a frame without blocking on the network. Frames that cannot be sent
+     * right away may be dropped.
+     */
+    void send(byte[] frame, InetSocketAddress destination) throws IOException;
+
+    void close();
+}
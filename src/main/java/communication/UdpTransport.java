@@ -0,0 +1,85 @@
+package communication;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * UDP transport with one thread blocked on {@link DatagramSocket#receive}
+ */
+public class UdpTransport implements Transport {
+
+    private final DatagramSocket socket;
+    private final int maxDatagramSize;
+    private final ExecutorService executor;
+
+    private volatile boolean running;
+
+    /**
+     * Constructor
+     *
+     * @param port            UDP port to bind to
+     * @param maxDatagramSize Size of the receive buffer
+     */
+    public UdpTransport(int port, int maxDatagramSize) throws IOException {
+        this.socket = new DatagramSocket(port);
+        this.maxDatagramSize = maxDatagramSize;
+        this.executor = Executors.newSingleThreadExecutor();
+    }
+
+    @Override
+    public void start(Receiver receiver) {
+        if (running) {
+            return;
+        }
+        running = true;
+        executor.submit(() -> receiveLoop(receiver));
+    }
+
+    @Override
+    public void send(byte[] frame, InetSocketAddress destination) throws IOException {
+        DatagramPacket packet = new DatagramPacket(frame, frame.length, destination);
+        socket.send(packet);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        executor.shutdown();
+        socket.close();
+    }
+
+    /**
+     * Main receive loop
+     */
+    private void receiveLoop(Receiver receiver) {
+        byte[] buffer = new byte[maxDatagramSize]; // Create buffer once outside the loop
+
+        while (running) {
+            try {
+                // Reuse the same buffer for each packet
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet); // This blocks until a packet is received
+
+                // Important: Create a copy of the data to process
+                byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+
+                // Process the copied data, not the original buffer
+                receiver.onFrame(data);
+
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error receiving UDP packet: " + e.getMessage());
+                }
+            } catch (Exception e) {
+                System.err.println("Error processing incoming message. Trying to understand it as a client message... "
+                        + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+}
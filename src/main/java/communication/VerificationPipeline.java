@@ -0,0 +1,98 @@
+package communication;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies incoming signed messages on a pool of worker threads while keeping
+ * delivery ordered.
+ *
+ * Signatures of different messages are checked in parallel, but each sender's
+ * messages are handed to the sink in the order they were submitted, and the sink
+ * is always called from the same single delivery thread, so consumers keep the
+ * single-threaded view they had when verification ran inline.
+ */
+public class VerificationPipeline {
+
+    /**
+     * Signature check run on a worker thread
+     */
+    public interface Verifier {
+        boolean verify(SignedMessage signedMessage);
+    }
+
+    /**
+     * Receives the messages that passed verification, in per-sender FIFO order
+     */
+    public interface Sink {
+        void accept(SignedMessage signedMessage);
+    }
+
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final Verifier verifier;
+    private final Sink sink;
+    private final ExecutorService workers;
+    private final ExecutorService deliverer;
+    private final Map<Integer, CompletableFuture<Void>> tails;
+
+    /**
+     * Constructor
+     *
+     * @param threads  Number of verification worker threads
+     * @param verifier Signature check
+     * @param sink     Consumer of verified messages
+     */
+    public VerificationPipeline(int threads, Verifier verifier, Sink sink) {
+        this.verifier = verifier;
+        this.sink = sink;
+        this.workers = Executors.newFixedThreadPool(threads, namedDaemon("apl-verify-"));
+        this.deliverer = Executors.newSingleThreadExecutor(namedDaemon("apl-deliver-"));
+        this.tails = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Queue a message for verification and ordered delivery
+     */
+    public void submit(SignedMessage signedMessage) {
+        CompletableFuture<Boolean> verified = CompletableFuture.supplyAsync(
+                () -> verifier.verify(signedMessage), workers);
+
+        // Chain behind the previous message of the same sender: delivery of this
+        // message only starts once the previous one has been handed to the sink
+        tails.compute(signedMessage.getSenderId(), (sender, tail) -> (tail == null ? DONE : tail)
+                .thenCombine(verified, (ignored, valid) -> valid)
+                .thenAcceptAsync(valid -> {
+                    if (valid) {
+                        sink.accept(signedMessage);
+                    } else {
+                        System.err.println("Invalid signature on message from sender: " + sender);
+                    }
+                }, deliverer)
+                .exceptionally(e -> {
+                    if (!deliverer.isShutdown()) {
+                        System.err.println("Error verifying message from sender " + sender + ": " + e.getMessage());
+                    }
+                    return null;
+                }));
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+        deliverer.shutdown();
+    }
+
+    private static ThreadFactory namedDaemon(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
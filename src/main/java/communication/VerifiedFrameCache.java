@@ -0,0 +1,58 @@
+package communication;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Bounded set of recently verified RSA-signed frames.
+ *
+ * Retransmissions are byte-for-byte copies of the original frame, so once a
+ * frame has been verified its copies only need to be recognized: a SHA-256
+ * digest of the sender, the signed bytes and the signature replaces the RSA
+ * verification. Only frames that verified are remembered, and the oldest are
+ * evicted once the cache is full.
+ */
+public class VerifiedFrameCache {
+
+    private final Cache<ByteBuffer, Boolean> verified;
+    private final ThreadLocal<MessageDigest> digests;
+
+    /**
+     * Constructor
+     *
+     * @param maximumSize Number of frames remembered
+     */
+    public VerifiedFrameCache(long maximumSize) {
+        this.verified = Caffeine.newBuilder().maximumSize(maximumSize).build();
+        this.digests = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("SHA-256 not available", e);
+            }
+        });
+    }
+
+    /**
+     * Digest identifying a received frame
+     */
+    public ByteBuffer key(SignedMessage signedMessage) {
+        MessageDigest digest = digests.get();
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(signedMessage.getSenderId()).array());
+        digest.update(signedMessage.getSignedContent());
+        digest.update(signedMessage.getSignature());
+        return ByteBuffer.wrap(digest.digest());
+    }
+
+    public boolean contains(ByteBuffer key) {
+        return verified.getIfPresent(key) != null;
+    }
+
+    public void add(ByteBuffer key) {
+        verified.put(key, Boolean.TRUE);
+    }
+}
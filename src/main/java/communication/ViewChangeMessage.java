@@ -0,0 +1,28 @@
+package communication;
+
+/**
+ * VIEW_CHANGE message: vote to replace the leader by the one of a higher view
+ */
+public class ViewChangeMessage {
+    private final int view;
+    private final int lastDelivered; // Highest instance the sender delivered
+    private final int highestInstance; // Highest instance the sender knows was started
+
+    public ViewChangeMessage(int view, int lastDelivered, int highestInstance) {
+        this.view = view;
+        this.lastDelivered = lastDelivered;
+        this.highestInstance = highestInstance;
+    }
+
+    public int getView() {
+        return view;
+    }
+
+    public int getLastDelivered() {
+        return lastDelivered;
+    }
+
+    public int getHighestInstance() {
+        return highestInstance;
+    }
+}
@@ -1,14 +1,18 @@
 package consensus;
 
 import communication.AckMessage;
-import communication.AuthenticatedPerfectLink;
 import communication.CollectMessage;
 import communication.ConsensusMessage;
 import communication.ConsensusMessageType;
 import communication.DecideMessage;
+import communication.FetchMessage;
 import communication.Message;
+import communication.NewViewMessage;
+import communication.PayloadMessage;
+import communication.PerfectLink;
 import communication.ReadMessage;
 import communication.StateMessage;
+import communication.ViewChangeMessage;
 import communication.WriteMessage;
 import util.CryptoUtil;
 
@@ -20,54 +24,135 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Predicate;
 
 import blockchain.Blockchain;
 
 /**
  * Implementation of Byzantine Read/Write Epoch Consensus
- * This implementation assumes a static, non-Byzantine leader.
+ *
+ * The leader changes with the view. Views are numbered from 0, whose leader
+ * is the one given to the constructor, and the following ones go round-robin
+ * over the process IDs. A process that sees no instance delivered for
+ * {@code consensus.viewTimeoutMs} while it is waiting for one votes to move
+ * to the next view, doubling the timeout each time until an instance is
+ * delivered again. A process joins a view change once f + 1 processes voted
+ * for it, and moves to the view with n - f votes. The new leader then takes
+ * over the instances left in flight with a NEW_VIEW, which stands for a READ
+ * of each of them: they are finished with the full protocol at timestamps
+ * above those of earlier views, so a value that may have been decided is
+ * written again. Processes that already delivered one of these instances
+ * answer with its DECIDE, which the leader accepts from f + 1 of them.
+ *
+ * Several instances may be in flight at once: every instance keeps its own
+ * state, the leader starts up to {@code pipelineDepth} of them before the
+ * oldest is delivered, and decisions are handed to the DecideCallback in
+ * instance order.
+ *
+ * With {@code -Dconsensus.digests=true} the phases agree on the SHA-256
+ * digest of a value instead of the value itself: the leader sends the value
+ * once in a PAYLOAD message, and a process that decided a digest without
+ * having its value fetches it from its peers before delivering.
+ *
+ * A new instance takes a fast path: no value can have been written in it
+ * yet, so instead of READ the leader sends a COLLECT holding only its own
+ * empty state and the proposal, saving the READ/STATE round trip. A process
+ * whose register for the instance is not empty refuses it and answers with
+ * its STATE, and the leader then runs the instance with the full protocol,
+ * writing at a higher timestamp.
+ *
+ * All consensus state belongs to a single event-loop thread: received
+ * messages and calls to the public methods are queued in its mailbox and
+ * handled one at a time, so no locks are needed. Signing, of outgoing
+ * messages and of value proofs, runs on a separate pool of crypto threads
+ * that also hands the signed messages to the link, keeping the loop free
+ * for state transitions and the link's receive thread free for I/O. The loop,
+ * the crypto threads and the clock of the leader timeout come from a
+ * {@link ConsensusRuntime}, real threads unless one is given.
  */
 public class ByzantineReadWriteConsensus {
 
+    // Instances the leader may have started but not yet delivered, unless given explicitly
+    public static final int DEFAULT_PIPELINE_DEPTH = Integer.getInteger("consensus.pipelineDepth", 4);
+
+    private static final int PAYLOAD_CACHE_SIZE = 1024; // Values kept to deliver or serve to peers fetching them
+    private static final long PAYLOAD_CACHE_CHARS = 4 * 1024 * 1024; // Characters of those values, in total
+
+    // Whether new instances skip the READ/STATE round trip
+    private static final boolean FAST_PATH = Boolean.parseBoolean(System.getProperty("consensus.fastPath", "true"));
+
+    // Time without a delivery, while waiting for one, before voting for the next leader
+    private static final long VIEW_TIMEOUT_MS = Long.getLong("consensus.viewTimeoutMs", 2000);
+    private static final long MAX_VIEW_TIMEOUT_MS = 8 * VIEW_TIMEOUT_MS;
+
+    // Time to wait for the PAYLOAD of a decided digest before asking another process
+    private static final long FETCH_RETRY_MS = Math.max(10, VIEW_TIMEOUT_MS / 4);
+
+    private static final int MAX_FUTURE_MESSAGES = 4096; // Messages of views not installed kept per sender
+    private static final int MAX_EARLY_MESSAGES = 4096; // Messages of instances not yet started kept for later
+    private static final int DECIDED_HISTORY_SIZE = 1024; // Delivered decisions kept for leaders catching up
+
     private final int selfId;
-    private final int leaderId;
+    private int leaderId;
     private final List<Integer> processes;
+    private final List<Integer> leaderSchedule; // Leader of view v is entry (v mod n)
     private final int n; // Total number of processes
     private final int f; // Maximum number of Byzantine processes
-    private final AuthenticatedPerfectLink link;
-    private final Map<Integer, StateMessage> collected;
+    private final int pipelineDepth;
+    private final boolean digestValues;
+    private final PerfectLink link;
     private final PrivateKey privateKey;
     private final Map<Integer, PublicKey> publicKeys;
-    private final ExecutorService executor;
+    private final ConsensusRuntime runtime; // Event loop owning all consensus state, crypto threads and clock
+    private final Map<Integer, Queue<Message>> refusedMessages; // Messages waiting for room in a link send queue
     private Map<Long, String> writeSet;
-    private List<Map<Long, String>> writesReceived;
     private Blockchain blockchain;
 
     private String proposedValue;
-    private int consensusInstance;
     private DecideCallback decideCallback;
-    private boolean running;
-
-    // State for non-leader processes
-    private int timestamp;
-    private String value;
-    private List<byte[]> valueProofs; // Proofs of accepted values
+    private LeaderCallback leaderCallback;
+    private volatile boolean running;
+
+    // View change
+    private volatile int view;
+    private int votedView; // Highest view this process voted for
+    private final TreeMap<Integer, Map<Integer, ViewChangeMessage>> viewChangeVotes; // Votes by view and sender
+    // Messages of higher views, by view and sender
+    private final TreeMap<Integer, Map<Integer, List<Runnable>>> futureMessages;
+    private final Map<Integer, Integer> futureMessageCounts; // Messages each sender has in futureMessages
+    private long viewTimeoutMs;
+    private long progressDeadline; // When to suspect the leader, 0 while not waiting
+    private boolean proposalWaiting; // A proposal arrived at a non-leader since the last delivery
+
+    // State of every instance started and not yet delivered
+    private final TreeMap<Integer, InstanceState> instances;
+    private int lastDelivered; // Highest instance handed to the DecideCallback
+    private final Map<String, String> payloads; // Values by digest, when agreeing on digests
+    private long payloadChars; // Characters of the values in payloads
+    private final Map<Integer, String> decidedHistory; // Recently delivered decisions by instance
+    private final TreeMap<Integer, List<Runnable>> earlyMessages; // Messages of instances not started here yet
+    private int earlyMessageCount;
 
     // State for leader process
-    private Map<Integer, List<byte[]>> proofs;
-    private Set<Integer> acknowledged;
+    private final Queue<String> pendingProposals; // Proposals waiting for a free pipeline slot
+    private int lastStarted; // Highest instance started
 
     /**
      * Constructor
@@ -85,96 +170,562 @@ public class ByzantineReadWriteConsensus {
             int leaderId,
             List<Integer> processes,
             int maxByzantine,
-            AuthenticatedPerfectLink link,
+            PerfectLink link,
             PrivateKey privateKey,
             Map<Integer, PublicKey> publicKeys,
             Blockchain blockchain) {
+        this(selfId, leaderId, processes, maxByzantine, link, privateKey, publicKeys, blockchain,
+                DEFAULT_PIPELINE_DEPTH);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param selfId        The ID of this process
+     * @param leaderId      The ID of the leader process
+     * @param processes     List of all process IDs
+     * @param maxByzantine  Maximum number of Byzantine processes
+     * @param link          The authenticated perfect link
+     * @param privateKey    The private key of this process
+     * @param publicKeys    Map of process IDs to their public keys
+     * @param pipelineDepth Instances the leader may run at once; 1 runs them
+     *                      one after the other
+     */
+    public ByzantineReadWriteConsensus(
+            int selfId,
+            int leaderId,
+            List<Integer> processes,
+            int maxByzantine,
+            PerfectLink link,
+            PrivateKey privateKey,
+            Map<Integer, PublicKey> publicKeys,
+            Blockchain blockchain,
+            int pipelineDepth) {
+        this(selfId, leaderId, processes, maxByzantine, link, privateKey, publicKeys, blockchain,
+                pipelineDepth, new ThreadedConsensusRuntime(selfId));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param selfId        The ID of this process
+     * @param leaderId      The ID of the leader process
+     * @param processes     List of all process IDs
+     * @param maxByzantine  Maximum number of Byzantine processes
+     * @param link          The authenticated perfect link
+     * @param privateKey    The private key of this process
+     * @param publicKeys    Map of process IDs to their public keys
+     * @param pipelineDepth Instances the leader may run at once; 1 runs them
+     *                      one after the other
+     * @param runtime       Event loop, crypto threads and clock to run on
+     */
+    public ByzantineReadWriteConsensus(
+            int selfId,
+            int leaderId,
+            List<Integer> processes,
+            int maxByzantine,
+            PerfectLink link,
+            PrivateKey privateKey,
+            Map<Integer, PublicKey> publicKeys,
+            Blockchain blockchain,
+            int pipelineDepth,
+            ConsensusRuntime runtime) {
+
+        if (pipelineDepth <= 0) {
+            throw new IllegalArgumentException("pipelineDepth must be positive");
+        }
 
         this.selfId = selfId;
         this.leaderId = leaderId;
         this.processes = processes;
         this.n = processes.size();
         this.f = maxByzantine;
+        this.pipelineDepth = pipelineDepth;
+        this.digestValues = Boolean.getBoolean("consensus.digests");
         this.link = link;
-        this.collected = new HashMap<>();
         this.privateKey = privateKey;
         this.publicKeys = publicKeys;
-        this.executor = Executors.newSingleThreadExecutor();
-        this.writesReceived = new ArrayList<>();
+        this.blockchain = blockchain;
+        this.runtime = runtime;
+        this.refusedMessages = new HashMap<>();
+        for (int processId : processes) {
+            refusedMessages.put(processId, new ConcurrentLinkedQueue<>());
+        }
+
+        this.instances = new TreeMap<>();
+        this.earlyMessages = new TreeMap<>();
+        this.lastDelivered = 0;
+        this.payloads = new LinkedHashMap<>(16, 0.75f, true);
+        this.decidedHistory = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+                return size() > DECIDED_HISTORY_SIZE;
+            }
+        };
 
-        this.consensusInstance = 0;
-        this.timestamp = 0;
-        this.value = null;
-        this.valueProofs = new ArrayList<>();
+        this.pendingProposals = new ArrayDeque<>();
+        this.lastStarted = 0;
 
-        this.proofs = new HashMap<>();
-        this.acknowledged = new HashSet<>();
+        this.leaderSchedule = new ArrayList<>(processes);
+        Collections.sort(leaderSchedule);
+        Collections.rotate(leaderSchedule, -leaderSchedule.indexOf(leaderId));
+        this.view = 0;
+        this.votedView = 0;
+        this.viewChangeVotes = new TreeMap<>();
+        this.futureMessages = new TreeMap<>();
+        this.futureMessageCounts = new HashMap<>();
+        this.viewTimeoutMs = VIEW_TIMEOUT_MS;
 
         this.running = false;
 
         // Register callback for message delivery
         link.registerDeliverCallback(this::onMessageDeliver);
+        link.registerCapacityCallback(destination -> runCrypto(() -> retryRefused(destination)));
+
+        // Watch for a leader that stopped delivering
+        long tick = Math.max(10, VIEW_TIMEOUT_MS / 4);
+        runtime.scheduleWithFixedDelay(this::checkProgress, tick);
     }
 
     public void init(String initialValue, Map<Long, String> writeSet) {
-        this.proposedValue = initialValue;
-        this.value = initialValue;
-        if (writeSet == null)
-            this.writeSet = writeSet;
+        post(() -> {
+            this.proposedValue = initialValue;
+            if (writeSet == null)
+                this.writeSet = writeSet;
+        });
     }
 
     public void propose(String value) {
-        this.proposedValue = value;
+        post(() -> {
+            this.proposedValue = value;
 
-        if (selfId == leaderId) {
-            startNewConsensusInstance();
-        }
+            if (selfId == leaderId) {
+                startNewConsensusInstance();
+            }
+        });
     }
 
     public void registerDecideCallback(DecideCallback callback) {
         this.decideCallback = callback;
     }
 
+    public void registerLeaderCallback(LeaderCallback callback) {
+        this.leaderCallback = callback;
+    }
+
     public void start() {
         running = true;
 
-        startNewConsensusInstance();
+        post(this::startNewConsensusInstance);
     }
 
     public void stop() {
         running = false;
-        executor.shutdown();
+        runtime.shutdown();
     }
 
     /**
-     * Start a new consensus instance
+     * Queue a task in the event loop's mailbox
+     */
+    private void post(Runnable task) {
+        try {
+            runtime.loop().execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    System.err.println("Error processing consensus event: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Consensus stopped
+        }
+    }
+
+    /**
+     * Start a new consensus instance for the proposed value, or queue the
+     * value until one of the instances in flight is delivered
      */
     private void startNewConsensusInstance() {
         if (selfId != leaderId) {
+            // Instances are started by the leader's READ
             System.out.println("Only the leader can start a new consensus instance");
+            proposalWaiting = true;
+            return;
+        }
+
+        pendingProposals.add(proposedValue);
+        startPendingInstances();
+    }
+
+    /**
+     * Start instances for queued proposals while the pipeline has room
+     */
+    private void startPendingInstances() {
+        while (!pendingProposals.isEmpty() && lastStarted - lastDelivered < pipelineDepth) {
+            int instance = ++lastStarted;
+            InstanceState state = createInstanceState(instance);
+            String proposal = pendingProposals.poll();
+
+            if (digestValues) {
+                // Send the value once; every phase after this carries its digest
+                state.proposedValue = digest(proposal);
+                cachePayload(state.proposedValue, proposal);
+                broadcastMessage(ConsensusMessageType.PAYLOAD, instance, new PayloadMessage(instance, proposal));
+            } else {
+                state.proposedValue = proposal;
+            }
+
+            if (FAST_PATH) {
+                // Nothing can have been written in a new instance: skip the read phase
+                state.fastPath = true;
+                state.collected.put(selfId, new StateMessage(instance, 0, state.proposedValue, List.of(), writeSet));
+                collect(state);
+            } else {
+                // Phase 1: Read phase
+                // Send READ message to all processes
+                ReadMessage readMsg = new ReadMessage(instance);
+                broadcastMessage(ConsensusMessageType.READ, instance, readMsg);
+            }
+        }
+    }
+
+    /**
+     * State of an instance the leader sent a message of, created if needed.
+     * Only instances of the pipeline window, from the first one not delivered
+     * here to {@code pipelineDepth} after it, get state: a message of a later
+     * instance is kept and processed again once the window reaches it.
+     *
+     * @param retry Processes the message again; null drops it instead
+     * @return The state, or null if the instance is outside the window
+     */
+    private InstanceState leaderInstanceState(int instance, Runnable retry) {
+        if (instance <= lastDelivered) {
+            return null;
+        }
+        if (instance > lastDelivered + pipelineDepth) {
+            if (retry != null) {
+                keepEarlyMessage(instance, retry);
+            }
+            return null;
+        }
+        return createInstanceState(instance);
+    }
+
+    /**
+     * State of an instance the leader already started here. A message of an
+     * instance of the window without state is kept until the leader's arrives.
+     *
+     * @param retry Processes the message again
+     * @return The state, or null if there is none yet
+     */
+    private InstanceState startedInstanceState(int instance, Runnable retry) {
+        if (instance <= lastDelivered) {
+            return null;
+        }
+        InstanceState state = instances.get(instance);
+        if (state == null) {
+            keepEarlyMessage(instance, retry);
+        }
+        return state;
+    }
+
+    /**
+     * State of an instance, created and handed the messages kept for it if
+     * it had none
+     */
+    private InstanceState createInstanceState(int instance) {
+        InstanceState state = instances.get(instance);
+        if (state == null) {
+            // n - f votes make a quorum; f + 1 include a correct process
+            state = new InstanceState(instance, n - f, f + 1);
+            instances.put(instance, state);
+            replayEarlyMessages(instance, instance);
+        }
+        return state;
+    }
+
+    private void keepEarlyMessage(int instance, Runnable retry) {
+        if (earlyMessageCount < MAX_EARLY_MESSAGES) {
+            earlyMessageCount++;
+            earlyMessages.computeIfAbsent(instance, i -> new ArrayList<>()).add(retry);
+        }
+    }
+
+    /**
+     * Process again, after the current event, the messages kept for the
+     * instances from {@code from} to {@code to}
+     */
+    private void replayEarlyMessages(int from, int to) {
+        if (from > to) {
+            return;
+        }
+        Map<Integer, List<Runnable>> ready = earlyMessages.subMap(from, true, to, true);
+        List<Runnable> retries = new ArrayList<>();
+        for (List<Runnable> kept : ready.values()) {
+            retries.addAll(kept);
+        }
+        ready.clear();
+        earlyMessageCount -= retries.size();
+        if (!retries.isEmpty()) {
+            post(() -> retries.forEach(Runnable::run));
+        }
+    }
+
+    /**
+     * Leader of a view
+     */
+    private int leaderOf(int view) {
+        return leaderSchedule.get(view % leaderSchedule.size());
+    }
+
+    /**
+     * Highest instance this process knows was started
+     */
+    private int highestKnownInstance() {
+        int highest = Math.max(lastStarted, lastDelivered);
+        return instances.isEmpty() ? highest : Math.max(highest, instances.lastKey());
+    }
+
+    /**
+     * Vote for the next view if this process has been waiting for a delivery
+     * for too long (event loop timer)
+     */
+    private void checkProgress() {
+        boolean waiting = !instances.isEmpty() || !pendingProposals.isEmpty() || proposalWaiting;
+        if (!running || !waiting) {
+            progressDeadline = 0;
+            return;
+        }
+
+        // Ask again for a decided value that did not arrive
+        Map.Entry<Integer, InstanceState> next = instances.firstEntry();
+        if (digestValues && next != null && next.getKey() == lastDelivered + 1 && next.getValue().decided) {
+            deliverDecided();
+        }
+
+        long now = runtime.currentTimeMillis();
+        if (progressDeadline == 0) {
+            progressDeadline = now + viewTimeoutMs;
+        } else if (now >= progressDeadline) {
+            System.out.println("CONSENSUS - No progress in view " + view + ", suspecting leader " + leaderId);
+            viewTimeoutMs = Math.min(viewTimeoutMs * 2, MAX_VIEW_TIMEOUT_MS);
+            progressDeadline = now + viewTimeoutMs;
+            voteViewChange(Math.max(view, votedView) + 1);
+        }
+    }
+
+    /**
+     * Broadcast a vote for a view, and count it
+     */
+    private void voteViewChange(int newView) {
+        votedView = newView;
+        ViewChangeMessage voteMsg = new ViewChangeMessage(newView, lastDelivered, highestKnownInstance());
+        broadcastMessage(ConsensusMessageType.VIEW_CHANGE, 0, voteMsg);
+        countViewChangeVote(voteMsg, selfId);
+    }
+
+    /**
+     * Process a VIEW_CHANGE message
+     */
+    private void processViewChangeMessage(ConsensusMessage message, int sender) {
+        ViewChangeMessage voteMsg = (ViewChangeMessage) message.getPayload();
+        if (voteMsg.getView() <= view) {
+            return;
+        }
+        if (voteMsg.getView() > (long) view + n) {
+            // Every process leads one of the next n views: keep at most n votes per sender
+            System.out.println("CONSENSUS - Ignoring VIEW_CHANGE from " + sender + " for view " + voteMsg.getView());
+            return;
+        }
+        countViewChangeVote(voteMsg, sender);
+    }
+
+    private void countViewChangeVote(ViewChangeMessage voteMsg, int sender) {
+        int newView = voteMsg.getView();
+        Map<Integer, ViewChangeMessage> votes = viewChangeVotes.computeIfAbsent(newView, v -> new HashMap<>());
+        votes.put(sender, voteMsg);
+
+        // At least one correct process wants the change: join it
+        if (votes.size() >= f + 1 && votedView < newView) {
+            voteViewChange(newView);
+            return;
+        }
+
+        if (votes.size() >= n - f && newView > view) {
+            installView(newView, votes.values());
         }
+    }
 
-        consensusInstance++;
-        collected.clear();
-        proofs.clear();
-        acknowledged.clear();
-        writesReceived.clear();
+    /**
+     * Move to a view, handing the instances in flight to its leader
+     */
+    private void installView(int newView, Collection<ViewChangeMessage> votes) {
+        // Only votes within the pipeline window count, and a highest instance
+        // reported by f + 1 of them was reported by a correct process
+        int windowEnd = lastDelivered + pipelineDepth;
+        int lowestDelivered = lastDelivered;
+        List<Integer> reported = new ArrayList<>();
+        for (ViewChangeMessage voteMsg : votes) {
+            if (voteMsg.getHighestInstance() > windowEnd
+                    || voteMsg.getLastDelivered() > voteMsg.getHighestInstance()) {
+                continue;
+            }
+            reported.add(voteMsg.getHighestInstance());
+            lowestDelivered = Math.min(lowestDelivered, voteMsg.getLastDelivered());
+        }
+        reported.sort(Collections.reverseOrder());
+        int highestInstance = highestKnownInstance();
+        if (reported.size() > f) {
+            highestInstance = Math.max(highestInstance, reported.get(f));
+        }
+        highestInstance = Math.min(highestInstance, windowEnd);
+        lowestDelivered = Math.max(lowestDelivered, lastDelivered - DECIDED_HISTORY_SIZE);
+
+        view = newView;
+        votedView = Math.max(votedView, newView);
+        leaderId = leaderOf(newView);
+        viewChangeVotes.headMap(newView, true).clear();
+        progressDeadline = 0;
+        proposalWaiting = false; // Proposals still wanted are made again through the LeaderCallback
+        System.out.println("CONSENSUS - Installed view " + newView + " with leader " + leaderId);
+
+        // Messages kept for instances the old leader had not started are void
+        earlyMessages.clear();
+        earlyMessageCount = 0;
+
+        // What was collected, written or acknowledged for the old leader is void
+        for (InstanceState state : instances.values()) {
+            state.collected.clear();
+            state.acknowledged.clear();
+            state.writes.clear();
+            state.decideVotes.clear();
+            state.collectSent = false;
+            state.fastPath = false;
+        }
 
         if (selfId == leaderId) {
-            // Phase 1: Read phase
-            // Send READ message to all processes
-            ReadMessage readMsg = new ReadMessage(consensusInstance);
-            broadcastMessage(ConsensusMessageType.READ, readMsg);
+            // Take over every instance started by earlier leaders and not delivered
+            lastStarted = Math.max(lastStarted, highestInstance);
+            for (int instance = lastDelivered + 1; instance <= lastStarted; instance++) {
+                InstanceState state = createInstanceState(instance);
+                if (state.proposedValue == null) {
+                    // Written only if no earlier value can have been decided
+                    state.proposedValue = noOpValue();
+                }
+            }
+            broadcastMessage(ConsensusMessageType.NEW_VIEW, lastDelivered,
+                    new NewViewMessage(lastDelivered, lastStarted));
+
+            // Instances this process decided may not be decided elsewhere
+            for (int instance = lowestDelivered + 1; instance <= lastDelivered; instance++) {
+                String decided = decidedHistory.get(instance);
+                if (decided != null) {
+                    broadcastMessage(ConsensusMessageType.DECIDE, instance, new DecideMessage(instance, decided));
+                }
+            }
+            for (InstanceState state : instances.values()) {
+                if (state.decided) {
+                    broadcastMessage(ConsensusMessageType.DECIDE, state.instance,
+                            new DecideMessage(state.instance, state.decidedValue));
+                }
+            }
+            startPendingInstances();
+        } else {
+            // Proposals are made again by the new leader
+            pendingProposals.clear();
+        }
+
+        if (leaderCallback != null) {
+            leaderCallback.onLeaderChange(leaderId);
+        }
+
+        // Messages that arrived before this process moved to the view
+        futureMessages.headMap(newView).clear();
+        Map<Integer, List<Runnable>> buffered = futureMessages.remove(newView);
+        futureMessageCounts.clear();
+        for (Map<Integer, List<Runnable>> bySender : futureMessages.values()) {
+            bySender.forEach((from, kept) -> futureMessageCounts.merge(from, kept.size(), Integer::sum));
+        }
+        if (buffered != null) {
+            buffered.values().forEach(kept -> kept.forEach(Runnable::run));
+        }
+    }
+
+    /**
+     * Value proposed for an instance taken over from an earlier leader
+     */
+    private String noOpValue() {
+        if (!digestValues) {
+            return "";
+        }
+        String noOpDigest = digest("");
+        cachePayload(noOpDigest, "");
+        return noOpDigest;
+    }
+
+    /**
+     * Process a NEW_VIEW message: report the state of every instance the new
+     * leader takes over
+     */
+    private void processNewViewMessage(ConsensusMessage message, int sender) {
+        if (sender != leaderId) {
+            System.err.println("Received NEW_VIEW message from non-leader: " + sender);
+            return;
+        }
+
+        // A leader takes over at most pipelineDepth instances after the last
+        // one it delivered
+        NewViewMessage newViewMsg = (NewViewMessage) message.getPayload();
+        int from = newViewMsg.getFromInstance();
+        int to = newViewMsg.getToInstance();
+        if (from > to || (long) to - from > pipelineDepth || to <= lastDelivered - DECIDED_HISTORY_SIZE
+                || from >= lastDelivered + pipelineDepth) {
+            System.err.println("Received NEW_VIEW message with invalid instances " + from + " to " + to);
+            return;
+        }
+
+        for (int instance = Math.max(from, lastDelivered - DECIDED_HISTORY_SIZE) + 1; instance <= to; instance++) {
+            reportToLeader(instance);
+        }
+    }
+
+    /**
+     * Hand the leader of a new view what this process knows of an instance:
+     * its DECIDE if delivered here, its register otherwise
+     */
+    private void reportToLeader(int instance) {
+        String decided = decidedHistory.get(instance);
+        if (decided != null) {
+            // Already delivered here: help the leader catch up
+            sendMessage(ConsensusMessageType.DECIDE, instance, new DecideMessage(instance, decided), leaderId);
+            return;
+        }
+
+        InstanceState state = leaderInstanceState(instance, () -> reportToLeader(instance));
+        if (state != null) {
+            sendState(state);
         }
     }
 
     /**
-     * Process a received message
+     * Hand a received message to the event loop, on the link's receive thread
      */
     private void onMessageDeliver(Message message, int sender) {
         try {
             // Deserialize the consensus message
             ConsensusMessage consensusMsg = ConsensusMessage.deserialize(message.getPayload());
+            post(() -> processMessage(consensusMsg, sender));
+
+        } catch (Exception e) {
+            System.err.println("Error processing consensus message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Process a received message, on the event loop
+     */
+    private void processMessage(ConsensusMessage consensusMsg, int sender) {
+        try {
 
             /*
              * 
@@ -188,8 +739,31 @@ public class ByzantineReadWriteConsensus {
 
             System.out.println("CONSENSUS - Message: " + consensusMsg.getType());
 
+            ConsensusMessageType type = consensusMsg.getType();
+            if (type == ConsensusMessageType.VIEW_CHANGE) {
+                processViewChangeMessage(consensusMsg, sender);
+                return;
+            }
+
+            // Values are the same in every view; everything else follows the leader of its view
+            boolean viewIndependent = type == ConsensusMessageType.PAYLOAD || type == ConsensusMessageType.FETCH;
+            if (!viewIndependent && consensusMsg.getView() < view) {
+                return;
+            }
+            if (!viewIndependent && consensusMsg.getView() > view) {
+                // Each sender has its own share, so no process can crowd out the new leader's messages
+                int kept = futureMessageCounts.getOrDefault(sender, 0);
+                if (kept < MAX_FUTURE_MESSAGES) {
+                    futureMessageCounts.put(sender, kept + 1);
+                    futureMessages.computeIfAbsent(consensusMsg.getView(), v -> new LinkedHashMap<>())
+                            .computeIfAbsent(sender, s -> new ArrayList<>())
+                            .add(() -> processMessage(consensusMsg, sender));
+                }
+                return;
+            }
+
             // Process message based on its type
-            switch (consensusMsg.getType()) {
+            switch (type) {
                 case READ:
                     processReadMessage(consensusMsg, sender);
                     break;
@@ -214,6 +788,18 @@ public class ByzantineReadWriteConsensus {
                     processDecideMessage(consensusMsg, sender);
                     break;
 
+                case PAYLOAD:
+                    processPayloadMessage(consensusMsg, sender);
+                    break;
+
+                case FETCH:
+                    processFetchMessage(consensusMsg, sender);
+                    break;
+
+                case NEW_VIEW:
+                    processNewViewMessage(consensusMsg, sender);
+                    break;
+
                 default:
                     System.err.println("Unknown consensus message type: " + consensusMsg.getType());
             }
@@ -235,20 +821,34 @@ public class ByzantineReadWriteConsensus {
         ReadMessage readMsg = (ReadMessage) message.getPayload();
         int instance = readMsg.getInstance();
 
-        if (instance < consensusInstance) {
-            // Ignore old instances
+        InstanceState state = leaderInstanceState(instance, () -> processMessage(message, sender));
+        if (state == null) {
+            // Old instance, or kept until the window reaches it
             return;
         }
 
-        consensusInstance = instance;
+        sendState(state);
+    }
 
-        // Create proofs for the current value
-        byte[] proof = createValueProof();
-        valueProofs.add(proof);
+    /**
+     * Send the register of an instance to the leader in a STATE message
+     */
+    private void sendState(InstanceState state) {
+        // Create the proof for the current value of the instance, once
+        if (state.proof == null) {
+            state.proof = createValueProof(state);
+        }
 
-        // Send STATE message to the leader
-        StateMessage stateMsg = new StateMessage(instance, timestamp, value, valueProofs, writeSet);
-        sendMessage(ConsensusMessageType.STATE, stateMsg, leaderId);
+        // Send STATE message to the leader once the proof is signed
+        int instance = state.instance;
+        long timestamp = state.timestamp;
+        String value = state.value;
+        Map<Long, String> writeSet = this.writeSet;
+        int leader = leaderId;
+        state.proof.thenAccept(proof -> {
+            StateMessage stateMsg = new StateMessage(instance, timestamp, value, List.of(proof), writeSet);
+            sendMessage(ConsensusMessageType.STATE, instance, stateMsg, leader);
+        });
     }
 
     /**
@@ -263,55 +863,91 @@ public class ByzantineReadWriteConsensus {
         StateMessage stateMsg = (StateMessage) message.getPayload();
         int instance = stateMsg.getInstance();
 
-        if (instance != consensusInstance) {
-            // Ignore messages from different instances
-            System.out.println(
-                    "CONSENSUS - INSTANCE: " + instance + " and CONSENSUSINSTANCE: " + consensusInstance);
+        InstanceState state = instances.get(instance);
+        if (state != null && state.fastPath && !state.decided) {
+            // A process refused the fast path: run the instance with the full protocol
+            System.out.println("CONSENSUS - Fast path refused by " + sender + " for instance: " + instance);
+            state.fastPath = false;
+            state.collectSent = false;
+            state.collected.clear();
+            state.acknowledged.clear();
+            broadcastMessage(ConsensusMessageType.READ, instance, new ReadMessage(instance));
+
+        } else if (state == null || state.collectSent) {
+            // Ignore messages from instances not running or already past the read phase
+            System.out.println("CONSENSUS - Ignoring STATE for instance: " + instance);
             return;
         }
 
-        // Store the state from this process
-        collected.put(selfId,
-                new StateMessage(consensusInstance, this.timestamp, this.proposedValue, this.valueProofs,
-                        this.writeSet));
-        collected.put(sender, stateMsg);
-        proofs.put(sender, stateMsg.getProofs());
+        // Store the state from this process: its register if written, else its proposal
+        state.collected.put(selfId,
+                new StateMessage(instance, state.timestamp, state.value != null ? state.value : state.proposedValue,
+                        proofsOf(state), this.writeSet));
+        state.collected.put(sender, stateMsg);
 
         // Check if we have enough STATE messages to proceed
-        if (collected.size() >= n - f) {
-            // Phase 1: READ phase
-            // Send COLLECTED message to all processes
-            CollectMessage collectMsg = new CollectMessage(consensusInstance, collected);
-            System.out.println("CONSENSUS - broadcast collect");
-            broadcastMessage(ConsensusMessageType.COLLECT, collectMsg);
-            processCollectedMessage(null, selfId);
+        if (state.collected.size() >= n - f) {
+            collect(state);
         }
     }
 
+    /**
+     * Send the collected states to all processes and write from them (leader only)
+     */
+    private void collect(InstanceState state) {
+        // Phase 1: READ phase
+        // Send COLLECTED message to all processes
+        state.collectSent = true;
+        CollectMessage collectMsg = new CollectMessage(state.instance, new HashMap<>(state.collected));
+        System.out.println("CONSENSUS - broadcast collect");
+        broadcastMessage(ConsensusMessageType.COLLECT, state.instance, collectMsg);
+        writeCollected(state, state.collected);
+    }
+
     /**
      * Process a COLLECT message
      */
     private void processCollectedMessage(ConsensusMessage message, int sender) {
-
-        CollectMessage collectMsg;
-
-        if (selfId != leaderId) {
-            // Only the leader should process COLLECT messages
-            collectMsg = (CollectMessage) message.getPayload();
-        } else {
-            collectMsg = new CollectMessage(this.consensusInstance, collected);
+        if (selfId == leaderId) {
+            // The leader writes from its own collected states when it sends the COLLECT
+            return;
+        }
+        if (sender != leaderId) {
+            System.err.println("Received COLLECT message from non-leader: " + sender);
+            return;
         }
 
+        CollectMessage collectMsg = (CollectMessage) message.getPayload();
         int instance = collectMsg.getInstance();
 
-        if (instance != consensusInstance) {
-            System.out.println("CONSENSUS - Received COLLECT for different instance: " +
-                    instance + " (current: " + consensusInstance + ")");
+        InstanceState state = leaderInstanceState(instance, () -> processMessage(message, sender));
+        if (state == null) {
+            System.out.println("CONSENSUS - Received COLLECT for instance outside the window: " + instance);
             return;
         }
 
-        // Analyze collected state messages to determine the most appropriate value
-        Map<Integer, StateMessage> collectedStates = collectMsg.getCollected();
+        Map<Integer, StateMessage> collected = collectMsg.getCollected();
+        if (collected.size() < n - f) {
+            // Fast path: the leader claims nothing was written in the instance
+            StateMessage leaderState = collected.get(leaderId);
+            boolean fastPathValid = collected.size() == 1 && leaderState != null && leaderState.getTimestamp() == 0;
+
+            if (!fastPathValid || state.timestamp > 0 || state.value != null) {
+                // Our register says otherwise: report it instead of writing
+                System.out.println("CONSENSUS - Refusing fast path for instance: " + instance);
+                sendState(state);
+                return;
+            }
+        }
+
+        writeCollected(state, collected);
+    }
+
+    /**
+     * Pick the value to write from the states collected by the leader and
+     * broadcast it
+     */
+    private void writeCollected(InstanceState state, Map<Integer, StateMessage> collectedStates) {
 
         // Track value occurrences and timestamps
         Map<String, Integer> valueOccurrences = new HashMap<>();
@@ -340,8 +976,9 @@ public class ByzantineReadWriteConsensus {
             }
         }
 
-        // Determine the value to write
-        String writeValue = proposedValue; // Default to proposed value
+        // Determine the value to write: default to the value the leader proposed
+        StateMessage leaderState = collectedStates.get(leaderId);
+        String writeValue = leaderState != null ? leaderState.getValue() : null;
 
         // Find a value that appears in more than f processes
         for (Map.Entry<String, Integer> entry : valueOccurrences.entrySet()) {
@@ -356,13 +993,25 @@ public class ByzantineReadWriteConsensus {
             writeValue = mostRecentValue;
         }
 
-        // Determine the timestamp for the write
-        long writeTimestamp = maxTimestamp + 1;
+        // Determine the timestamp for the write, once per timestamp. The fast
+        // path of view v writes at 2v + 1 and its full protocol at 2v + 2 or
+        // above: a view starts above the views before it, and the full
+        // protocol after a refused fast path writes above it everywhere
+        boolean fastPath = collectedStates.size() < n - f;
+        long writeTimestamp = Math.max(maxTimestamp + 1, 2L * view + (fastPath ? 1 : 2));
+        if (writeTimestamp <= state.writeTimestamp) {
+            return;
+        }
+        state.writeTimestamp = writeTimestamp;
+        state.writeValue = writeValue;
 
         // Phase 2: Write phase
-        WriteMessage writeMsg = new WriteMessage(instance, writeTimestamp, writeValue);
+        WriteMessage writeMsg = new WriteMessage(state.instance, writeTimestamp, writeValue);
         System.out.println("CONSENSUS - Broadcasting WRITE with value: " + writeValue);
-        broadcastMessage(ConsensusMessageType.WRITE, writeMsg);
+        broadcastMessage(ConsensusMessageType.WRITE, state.instance, writeMsg);
+
+        // The link does not deliver a broadcast to its sender: count our own write
+        recordWrite(state, selfId, writeTimestamp, writeValue);
     }
 
     /**
@@ -372,78 +1021,49 @@ public class ByzantineReadWriteConsensus {
         WriteMessage writeMsg = (WriteMessage) message.getPayload();
         int instance = writeMsg.getInstance();
 
-        // Check if the message is for the current consensus instance
-        if (instance != consensusInstance) {
-            System.out.println("CONSENSUS - processWrite - Ignoring message from different instance. " +
-                    "Current: " + consensusInstance + ", Received: " + instance);
+        InstanceState state = startedInstanceState(instance, () -> processMessage(message, sender));
+        if (state == null) {
+            System.out.println("CONSENSUS - processWrite - No state for WRITE of instance " + instance);
             return;
         }
 
-        // Create a map for this write message
-        Map<Long, String> writeMap = new HashMap<>();
-        writeMap.put(writeMsg.getTimestamp(), writeMsg.getValue());
-
-        // Add the map to writesReceived list
-        writesReceived.add(writeMap);
-
-        // Check if we have received enough writes and they are consistent
-        if (writesReceived.size() >= n - f) {
-            // Verify that all maps in writesReceived have the same pairs
-            boolean isConsistent = areMapsConsistent(writesReceived);
-
-            if (isConsistent) {
-                // Get the consistent value from the first map
-                Map<Long, String> firstMap = writesReceived.get(0);
-                Long timestamp = firstMap.keySet().iterator().next();
-                value = firstMap.get(timestamp);
-
-                // Create proof for the new value
-                byte[] proof = createValueProof();
-                valueProofs.add(proof);
-
-                System.out.println(
-                        "CONSENSUS - processWrite - Sending value " + value + " to leader");
+        recordWrite(state, sender, writeMsg.getTimestamp(), writeMsg.getValue());
+    }
 
-                // Send ACK message to the leader
-                AckMessage ackMsg = new AckMessage(instance, timestamp, value);
-                sendMessage(ConsensusMessageType.ACK, ackMsg, leaderId);
-            } else {
-                // Handle inconsistent writes
-                System.out.println("CONSENSUS - processWrite - Inconsistent writes received");
-            }
+    /**
+     * Count a WRITE towards its quorum, and acknowledge the value once n - f
+     * processes wrote it
+     */
+    private void recordWrite(InstanceState state, int sender, long writeTimestamp, String writeValue) {
+        int instance = state.instance;
+        if (writeTimestamp <= state.ackTimestamp) {
+            System.out.println("CONSENSUS - processWrite - Ignoring WRITE for instance " + instance
+                    + ", already acknowledged");
+            return;
         }
-    }
 
-    // Helper method to check consistency of maps
-    private boolean areMapsConsistent(List<Map<Long, String>> maps) {
-        if (maps.isEmpty()) {
-            System.out.println("writemaps are empty");
-            return false;
+        // Check if this write completes n - f matching writes
+        if (!state.writes.vote(sender, writeTimestamp, writeValue)) {
+            return;
         }
 
-        // Get the first map to compare against
-        Map<Long, String> firstMap = maps.get(0);
+        state.timestamp = writeTimestamp;
+        state.value = writeValue;
 
-        // Ensure all maps have exactly one entry
-        for (Map<Long, String> map : maps) {
-            if (map.size() != 1) {
-                return false;
-            }
-        }
+        // The proof of the new value replaces the one of the old value
+        state.proof = createValueProof(state);
 
-        // Get the value from the first map
-        String firstValue = firstMap.values().iterator().next();
+        System.out.println(
+                "CONSENSUS - processWrite - Sending value " + writeValue + " to leader");
 
-        // Check that all maps have the same value
-        for (Map<Long, String> map : maps) {
-            String currentValue = map.values().iterator().next();
-            if (!firstValue.equals(currentValue)) {
-                System.out.println("current value: " + currentValue + " and first value: " + firstValue);
-                return false;
-            }
+        // Send ACK message to the leader
+        state.ackTimestamp = writeTimestamp;
+        if (selfId == leaderId) {
+            acknowledge(state, selfId, writeTimestamp, writeValue);
+        } else {
+            AckMessage ackMsg = new AckMessage(instance, writeTimestamp, writeValue);
+            sendMessage(ConsensusMessageType.ACK, instance, ackMsg, leaderId);
         }
-
-        return true;
     }
 
     /**
@@ -458,33 +1078,48 @@ public class ByzantineReadWriteConsensus {
         AckMessage ackMsg = (AckMessage) message.getPayload();
         int instance = ackMsg.getInstance();
 
-        if (instance != consensusInstance) {
-            // Ignore messages from different instances
+        InstanceState state = instances.get(instance);
+        if (state == null) {
+            // Ignore messages from instances not running
             return;
         }
 
-        // Safely retrieve the collected state message
-        StateMessage senderState = collected.get(sender);
-        if (senderState == null) {
+        acknowledge(state, sender, ackMsg.getTimestamp(), ackMsg.getValue());
+    }
+
+    /**
+     * Count an ACK, and decide once n - f processes acknowledged the value
+     * written (leader only)
+     */
+    private void acknowledge(InstanceState state, int sender, long ackTimestamp, String ackValue) {
+        int instance = state.instance;
+        if (state.decided) {
+            // Ignore messages from instances already decided
+            return;
+        }
+
+        // Safely retrieve the collected state message; on the fast path none
+        // was collected, and the register of the sender was empty
+        StateMessage senderState = state.collected.get(sender);
+        if (senderState == null && !state.fastPath) {
             System.err.println("No collected state found for sender: " + sender);
             return;
         }
+        long collectedTimestamp = senderState != null ? senderState.getTimestamp() : 0;
 
         // More relaxed timestamp and value verification
-        boolean isValidTimestamp = ackMsg.getTimestamp() >= senderState.getTimestamp();
-        boolean isValidValue = Objects.equals(ackMsg.getValue(), value);
+        boolean isValidTimestamp = ackTimestamp >= collectedTimestamp;
+        boolean isValidValue = Objects.equals(ackValue, state.writeValue);
 
         if (isValidTimestamp && isValidValue) {
-            acknowledged.add(sender);
-
-            // Check if we have enough ACKs to decide
-            if (acknowledged.size() >= n - f) {
+            // Check if this ACK completes the n - f needed to decide
+            if (state.acknowledged.vote(sender, ackTimestamp, ackValue)) {
                 // Send DECIDE message to all processes
-                DecideMessage decideMsg = new DecideMessage(consensusInstance, value);
-                broadcastMessage(ConsensusMessageType.DECIDE, decideMsg);
+                DecideMessage decideMsg = new DecideMessage(instance, state.writeValue);
+                broadcastMessage(ConsensusMessageType.DECIDE, instance, decideMsg);
 
                 // Also deliver locally
-                decide(value);
+                decide(state, state.writeValue);
             }
         } else {
             System.err.println("Invalid ACK from sender: " + sender +
@@ -497,7 +1132,7 @@ public class ByzantineReadWriteConsensus {
      * Process a DECIDE message
      */
     private void processDecideMessage(ConsensusMessage message, int sender) {
-        if (sender != leaderId) {
+        if (sender != leaderId && selfId != leaderId) {
             System.err.println("Received DECIDE message from non-leader: " + sender);
             return;
         }
@@ -505,39 +1140,255 @@ public class ByzantineReadWriteConsensus {
         DecideMessage decideMsg = (DecideMessage) message.getPayload();
         int instance = decideMsg.getInstance();
 
-        if (instance != consensusInstance) {
-            // Ignore messages from different instances
+        Runnable retry = () -> processMessage(message, sender);
+        InstanceState state = sender == leaderId
+                ? leaderInstanceState(instance, retry)
+                : startedInstanceState(instance, retry);
+        if (state == null || state.decided) {
+            // Ignore messages from instances already decided
+            return;
+        }
+
+        if (sender != leaderId) {
+            // A process that delivered an instance the new leader took over:
+            // f + 1 of them include a correct one
+            if (state.decideVotes.vote(sender, 0, decideMsg.getValue())) {
+                broadcastMessage(ConsensusMessageType.DECIDE, instance, decideMsg);
+                decide(state, decideMsg.getValue());
+            }
             return;
         }
 
         if (selfId != sender)
             // Deliver the decided value
-            decide(decideMsg.getValue());
+            decide(state, decideMsg.getValue());
     }
 
     /**
-     * Deliver a decided value
+     * Process a PAYLOAD message: keep the value under its digest, which is
+     * computed here so no sender can attach a value to another digest
      */
-    private void decide(String decidedValue) {
-        if (decideCallback != null) {
-            System.out.println("DECIDED VALUE: " + decidedValue);
-            decideCallback.onDecide(decidedValue);
+    private void processPayloadMessage(ConsensusMessage message, int sender) {
+        if (!digestValues) {
+            return;
+        }
+
+        PayloadMessage payloadMsg = (PayloadMessage) message.getPayload();
+        int instance = payloadMsg.getInstance();
+        String payloadDigest = digest(payloadMsg.getValue());
+
+        // Only keep the value of a digest an instance uses, or the one value
+        // the leader proposes for an instance, which arrives ahead of the digest
+        InstanceState state = instances.get(instance);
+        boolean needed = state != null && (payloadDigest.equals(state.decidedValue)
+                || payloadDigest.equals(state.value) || payloadDigest.equals(state.proposedValue));
+        if (!needed && sender == leaderId) {
+            state = leaderInstanceState(instance, () -> processMessage(message, sender));
+            needed = state != null && state.leaderPayload == null;
+            if (needed) {
+                state.leaderPayload = payloadDigest;
+            }
+        }
+        if (!needed) {
+            return;
         }
+        cachePayload(payloadDigest, payloadMsg.getValue());
+
+        // The value may be all a decided instance was waiting for
+        deliverDecided();
     }
 
     /**
-     * Create a proof for the current value
+     * Keep a value under its digest, evicting the least recently used ones
+     * beyond {@code PAYLOAD_CACHE_SIZE} values or {@code PAYLOAD_CACHE_CHARS}
+     * characters
      */
-    private byte[] createValueProof() {
-        try {
-            // Create a value proof by signing the current timestamp and value
-            String data = timestamp + ":" + (value != null ? value : "null");
-            return CryptoUtil.sign(data.getBytes(StandardCharsets.UTF_8), privateKey);
+    private void cachePayload(String payloadDigest, String payload) {
+        String previous = payloads.put(payloadDigest, payload);
+        payloadChars += payload.length() - (previous == null ? 0 : previous.length());
+
+        Iterator<String> eldest = payloads.values().iterator();
+        while (payloads.size() > PAYLOAD_CACHE_SIZE || payloadChars > PAYLOAD_CACHE_CHARS) {
+            payloadChars -= eldest.next().length();
+            eldest.remove();
+        }
+    }
 
-        } catch (Exception e) {
-            System.err.println("Error creating value proof: " + e.getMessage());
-            return new byte[0];
+    /**
+     * Ask for the value of a decided digest: from every process the first
+     * time, then from one process after the other every {@code FETCH_RETRY_MS}
+     * until it arrives
+     */
+    private void fetchPayload(InstanceState state) {
+        long now = runtime.currentTimeMillis();
+        FetchMessage fetchMsg = new FetchMessage(state.instance, state.decidedValue);
+        if (state.fetchAttempts == 0) {
+            broadcastMessage(ConsensusMessageType.FETCH, state.instance, fetchMsg);
+        } else if (now - state.fetchSentAt >= FETCH_RETRY_MS) {
+            int target = processes.get((processes.indexOf(selfId) + state.fetchAttempts) % n);
+            if (target == selfId) {
+                target = processes.get((processes.indexOf(selfId) + state.fetchAttempts + 1) % n);
+            }
+            sendMessage(ConsensusMessageType.FETCH, state.instance, fetchMsg, target);
+        } else {
+            return;
+        }
+        state.fetchAttempts++;
+        state.fetchSentAt = now;
+    }
+
+    /**
+     * Process a FETCH message: send the value back if we have it
+     */
+    private void processFetchMessage(ConsensusMessage message, int sender) {
+        if (!digestValues) {
+            return;
+        }
+
+        FetchMessage fetchMsg = (FetchMessage) message.getPayload();
+        String payload = payloads.get(fetchMsg.getDigest());
+        if (payload != null) {
+            sendMessage(ConsensusMessageType.PAYLOAD, fetchMsg.getInstance(),
+                    new PayloadMessage(fetchMsg.getInstance(), payload), sender);
+        }
+    }
+
+    /**
+     * Record the decision of an instance and deliver every decided value
+     * that no earlier instance is still waiting for
+     */
+    private void decide(InstanceState state, String decidedValue) {
+        state.decided = true;
+        state.decidedValue = decidedValue;
+        deliverDecided();
+    }
+
+    /**
+     * Hand decided values to the DecideCallback in instance order, stopping
+     * at the first instance not decided yet or whose value is still missing
+     */
+    private void deliverDecided() {
+        int previouslyDelivered = lastDelivered;
+        Map.Entry<Integer, InstanceState> next;
+        while ((next = instances.firstEntry()) != null && next.getKey() == lastDelivered + 1
+                && next.getValue().decided) {
+            InstanceState state = next.getValue();
+            String decidedValue = state.decidedValue;
+
+            if (digestValues) {
+                decidedValue = payloads.get(state.decidedValue);
+                if (decidedValue == null) {
+                    fetchPayload(state);
+                    break;
+                }
+            }
+
+            instances.pollFirstEntry();
+            lastDelivered = next.getKey();
+            decidedHistory.put(lastDelivered, state.decidedValue);
+
+            // The leader is making progress
+            progressDeadline = 0;
+            viewTimeoutMs = VIEW_TIMEOUT_MS;
+            proposalWaiting = false;
+
+            if (decideCallback != null) {
+                System.out.println("DECIDED VALUE: " + decidedValue);
+                decideCallback.onDecide(decidedValue);
+            }
+        }
+
+        // The window moved: drop what was kept for delivered instances and
+        // process what was kept for the instances it now reaches
+        if (lastDelivered > previouslyDelivered) {
+            Map<Integer, List<Runnable>> delivered = earlyMessages.headMap(lastDelivered, true);
+            for (List<Runnable> kept : delivered.values()) {
+                earlyMessageCount -= kept.size();
+            }
+            delivered.clear();
+            replayEarlyMessages(previouslyDelivered + pipelineDepth + 1, lastDelivered + pipelineDepth);
         }
+
+        // Delivered instances free pipeline slots for queued proposals
+        if (selfId == leaderId) {
+            startPendingInstances();
+        }
+    }
+
+    /**
+     * State of one consensus instance
+     */
+    private static class InstanceState {
+        private final int instance;
+
+        // Register of this process for the instance
+        private long timestamp;
+        private String value;
+        private CompletableFuture<byte[]> proof; // Signature of this process over the instance, timestamp and value
+
+        // Leader only
+        private String proposedValue;
+        private final Map<Integer, StateMessage> collected;
+        private final QuorumTracker acknowledged;
+        private boolean collectSent;
+        private boolean fastPath; // Started without a read phase
+
+        private String writeValue; // Value this process broadcast in its WRITE
+        private long writeTimestamp; // Timestamp of the last WRITE this process broadcast
+        private final QuorumTracker writes;
+        private long ackTimestamp; // Timestamp of the last WRITE quorum this process acknowledged
+        private boolean decided;
+        private String decidedValue; // The digest, when agreeing on digests
+        private String leaderPayload; // Digest of the value the leader sent in a PAYLOAD
+        private int fetchAttempts; // FETCH messages sent for the decided value
+        private long fetchSentAt; // When the last one was sent
+        private final QuorumTracker decideVotes; // DECIDEs from processes that delivered it
+
+        private InstanceState(int instance, int quorum, int correctQuorum) {
+            this.instance = instance;
+            this.timestamp = 0;
+            this.value = null;
+            this.collected = new HashMap<>();
+            this.acknowledged = new QuorumTracker(quorum);
+            this.writes = new QuorumTracker(quorum);
+            this.decideVotes = new QuorumTracker(correctQuorum);
+        }
+    }
+
+    /**
+     * Hex-encoded SHA-256 digest standing for a value
+     */
+    private static String digest(String value) {
+        return CryptoUtil.bytesToHex(CryptoUtil.sha256(value));
+    }
+
+    /**
+     * Create a proof for the current value of an instance, signed on the
+     * crypto threads
+     */
+    private CompletableFuture<byte[]> createValueProof(InstanceState state) {
+        // Create a value proof by signing the instance, timestamp and value
+        String data = state.instance + ":" + state.timestamp + ":"
+                + (state.value != null ? state.value : "null");
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return CryptoUtil.sign(data.getBytes(StandardCharsets.UTF_8), privateKey);
+
+            } catch (Exception e) {
+                System.err.println("Error creating value proof: " + e.getMessage());
+                return new byte[0];
+            }
+        }, runtime.crypto());
+    }
+
+    /**
+     * Proofs sent in a STATE message: only the one for the instance's current
+     * value, so STATE messages keep the same size however many instances ran
+     */
+    private static List<byte[]> proofsOf(InstanceState state) {
+        byte[] proof = state.proof != null ? state.proof.getNow(null) : null;
+        return proof != null ? List.of(proof) : List.of();
     }
 
     /**
@@ -575,44 +1426,90 @@ public class ByzantineReadWriteConsensus {
     }
 
     /**
-     * Broadcast a message to all processes
+     * Broadcast a message to all processes, signed and sent on the crypto threads
      */
-    private void broadcastMessage(ConsensusMessageType type, Object payload) {
-        for (int processId : processes) {
-            if (processId != selfId) {
-                sendMessage(type, payload, processId);
+    private void broadcastMessage(ConsensusMessageType type, int instance, Object payload) {
+        int view = this.view;
+        runCrypto(() -> {
+            // Signed once here and once by the link, whatever the number of processes
+            ConsensusMessage consensusMsg = createConsensusMessage(type, view, payload);
+            Message message = new Message(type, instance, consensusMsg.serialize());
+
+            for (int destination : link.broadcast(message)) {
+                refuse(message, destination);
             }
-        }
+        });
     }
 
     /**
-     * Send a message to a specific process
+     * Send a message to a specific process, signed and sent on the crypto threads
      */
-    private void sendMessage(ConsensusMessageType type, Object payload, int destination) {
-        try {
+    private void sendMessage(ConsensusMessageType type, int instance, Object payload, int destination) {
+        int view = this.view;
+        runCrypto(() -> {
             // Create and sign the consensus message
-            ConsensusMessage consensusMsg = createConsensusMessage(type, payload);
+            ConsensusMessage consensusMsg = createConsensusMessage(type, view, payload);
 
             // Serialize and send
             byte[] msgBytes = consensusMsg.serialize();
-            Message message = new Message(
-                    communication.MessageType.DATA,
-                    consensusInstance,
-                    msgBytes);
+            Message message = new Message(type, instance, msgBytes);
 
-            link.send(message, destination);
+            if (!link.trySend(message, destination)) {
+                refuse(message, destination);
+            }
+        });
+    }
 
-        } catch (Exception e) {
-            System.err.println("Error sending consensus message: " + e.getMessage());
+    /**
+     * Keep a message the link refused until the destination has room for it
+     */
+    private void refuse(Message message, int destination) {
+        refusedMessages.get(destination).add(message);
+        // Room may have freed up before the message was queued here
+        retryRefused(destination);
+    }
+
+    /**
+     * Send the refused messages of a destination, in order, until its send
+     * queue is full again
+     */
+    private void retryRefused(int destination) {
+        Queue<Message> refused = refusedMessages.get(destination);
+        synchronized (refused) {
+            Message message;
+            while ((message = refused.peek()) != null && link.trySend(message, destination)) {
+                refused.poll();
+            }
+        }
+    }
+
+    /**
+     * Run a send task on the crypto threads
+     */
+    private void runCrypto(SendTask task) {
+        try {
+            runtime.crypto().execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    System.err.println("Error sending consensus message: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Consensus stopped
         }
     }
 
+    private interface SendTask {
+        void run() throws Exception;
+    }
+
     /**
      * Create a signed consensus message
      */
-    private ConsensusMessage createConsensusMessage(ConsensusMessageType type, Object payload) {
+    private ConsensusMessage createConsensusMessage(ConsensusMessageType type, int view, Object payload) {
         try {
-            ConsensusMessage message = new ConsensusMessage(type, payload);
+            ConsensusMessage message = new ConsensusMessage(type, view, payload);
             byte[] content = message.getContent();
             byte[] signature = CryptoUtil.sign(content, privateKey);
             message.setSignature(signature);
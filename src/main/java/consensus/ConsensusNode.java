@@ -22,15 +22,18 @@ import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.net.*;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.tuweni.bytes.Bytes;
 import org.hyperledger.besu.evm.worldstate.WorldState;
@@ -43,6 +46,7 @@ import java.lang.Long;
 import java.math.BigInteger;
 
 import communication.AuthenticatedPerfectLink;
+import communication.LinkConfig;
 import communication.Message;
 import communication.MessageType;
 import communication.DeliverCallback;
@@ -53,6 +57,8 @@ import blockchain.Transaction;
 
 public class ConsensusNode implements DeliverCallback {
 
+	private static final int DECIDED_REQUESTS_KEPT = 65536; // Decided transactions remembered to skip repeats
+
 	private final int nodeId;
 	private DatagramSocket clientSocket;
 	private InetAddress inetAddress;
@@ -63,18 +69,28 @@ public class ConsensusNode implements DeliverCallback {
 	private PublicKey publicKey;
 	private PrivateKey privateKey;
 	private final ByzantineReadWriteConsensus consensus;
+	private final ProposalBatcher proposalBatcher;
 	private Map<String, ClientInfo> activeClients;
 	private boolean isRunning = true;
 	private List<Transaction> transactionsPool;
+	private final Map<String, String> pendingRequests; // Requests not decided yet, by transaction
+	private final Set<String> decidedRequests; // Recently decided transactions, in decision order
 	private Blockchain blockchain;
 
 	public ConsensusNode(int nodeId, InetAddress inetAddress) throws Exception {
 		this.nodeId = nodeId;
 		this.inetAddress = inetAddress;
 		this.writeSet = new HashMap<>();
-		this.activeClients = new HashMap<>();
+		this.activeClients = new ConcurrentHashMap<>();
 		this.tsValue.put(0L, "");
-		this.transactionsPool = new LinkedList<>();
+		this.transactionsPool = Collections.synchronizedList(new LinkedList<>());
+		this.pendingRequests = Collections.synchronizedMap(new LinkedHashMap<>());
+		this.decidedRequests = Collections.synchronizedSet(Collections.newSetFromMap(new LinkedHashMap<>() {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > DECIDED_REQUESTS_KEPT;
+			}
+		}));
 		this.blockchain = new Blockchain();
 
 		// Create the client-facing socket
@@ -117,8 +133,9 @@ public class ConsensusNode implements DeliverCallback {
 		// Create map for process information
 		Map<Integer, ProcessInfo> processInfoMap = loadProcessInfo();
 
-		// Initialize AuthenticatedPerfectLink
-		this.apl = new AuthenticatedPerfectLink(nodeId, processInfoMap, privateKey, 6000 + nodeId);
+		// Initialize AuthenticatedPerfectLink (options can be overridden with -Dlink.* properties)
+		this.apl = new AuthenticatedPerfectLink(nodeId, processInfoMap, privateKey, 6000 + nodeId,
+				LinkConfig.fromSystemProperties());
 		this.apl.registerDeliverCallback(this);
 
 		// Create the ByzantineReadWriteConsensus instance
@@ -131,7 +148,7 @@ public class ConsensusNode implements DeliverCallback {
 			publicKeys.put(entry.getKey(), entry.getValue().getPublicKey());
 		}
 
-		// Choose leader (for simplicity, process 1 is leader)
+		// Leader of the first view; the consensus rotates it when it stops making progress
 		int leaderId = 1;
 
 		// Initialize consensus
@@ -147,21 +164,77 @@ public class ConsensusNode implements DeliverCallback {
 				e.printStackTrace();
 			}
 		});
+		this.consensus.registerLeaderCallback(this::onLeaderChange);
+
+		// Propose client requests in batches, one block per consensus instance
+		this.proposalBatcher = new ProposalBatcher(Integer.getInteger("consensus.batchSize", 64),
+				Long.getLong("consensus.batchWaitMs", 10), this::proposeBatch);
 
 		// Start communication layer
 		this.apl.start();
 	}
 
+	/**
+	 * Start a consensus instance for a batch of client requests
+	 */
+	private void proposeBatch(List<String> batch) {
+		System.out.println("Node " + nodeId + " proposing a batch of " + batch.size() + " transactions");
+		consensus.init(ProposalBatcher.encode(batch), writeSet);
+		consensus.start();
+	}
+
+	/**
+	 * Propose again every request not decided yet: the new leader proposes
+	 * them, and the other processes wait for them to be decided
+	 */
+	private void onLeaderChange(int leaderId) {
+		System.out.println("Node " + nodeId + " following leader " + leaderId);
+		List<String> requests;
+		synchronized (pendingRequests) {
+			requests = new ArrayList<>(pendingRequests.values());
+		}
+		for (String request : requests) {
+			proposalBatcher.add(request);
+		}
+	}
+
 	// Add method to handle consensus decisions
 	private void onConsensusDecide(String decidedValue) throws Exception {
 		System.out.println("Node " + nodeId + " decided value: " + decidedValue);
 
-		// Parse the client ID from the decided value (format: "clientId/message")
-		String[] parts = decidedValue.split("/", 2);
-		if (parts.length == 2) {
+		// The value is a batch of requests (format: "clientId/message"), decided as one block
+		List<Transaction> transactions = new ArrayList<>();
+		Set<String> decided = new HashSet<>();
+		Set<String> clientIds = new HashSet<>();
+
+		for (String request : ProposalBatcher.decode(decidedValue)) {
+			String[] parts = request.split("/", 2);
+			if (parts.length != 2) {
+				continue;
+			}
 			String clientId = parts[0];
 			String result = parts[1];
 
+			// Convert the result string into a Transaction object
+			Transaction tx = parseTransactionFromString(result);
+			if (tx == null) {
+				System.err.println("Failed to parse transaction from decided value.");
+				continue;
+			}
+			// A request proposed by more than one leader is applied once
+			pendingRequests.remove(result);
+			if (!decidedRequests.add(result)) {
+				continue;
+			}
+			transactions.add(tx);
+			decided.add(result);
+
+			if (tx.getData() == null || tx.getData().isEmpty()) {
+				System.out.println("Adding DepCoin transfer to block.");
+			} else {
+				System.out.println("Adding ISTCoin (smart contract) transfer to block.");
+			}
+
 			System.out.println("CLIENTID - " + clientId);
 			// Find the client info
 			ClientInfo clientInfo = activeClients.get(clientId);
@@ -171,30 +244,20 @@ public class ConsensusNode implements DeliverCallback {
 				System.out.println("REPORTING - " + result);
 
 				reportToClient(result, clientInfo.getAddress(), clientInfo.getPort());
+				clientIds.add(clientId);
+			}
+		}
 
-				// Convert the result string into a Transaction object
-				Transaction tx = parseTransactionFromString(result);
-				if (tx == null) {
-					System.err.println("Failed to parse transaction from decided value.");
-					return; // confirmar se dar return é a melhor opção
-				}
-
-				// Create a new block with the transaction
-				List<Transaction> transactions = new ArrayList<>();
-				transactions.add(tx);
-
-				if (tx.getData() == null || tx.getData().isEmpty()) {
-					System.out.println("Creating block for DepCoin transfer.");
-				} else {
-					System.out.println("Creating block for ISTCoin (smart contract) transfer.");
-				}
+		if (transactions.isEmpty()) {
+			return;
+		}
 
-				blockchain.addBlock(transactions);
+		// Create one block with every transaction of the batch
+		blockchain.addBlock(transactions);
+		transactionsPool.removeIf(tx -> decided.contains(tx.toString()));
 
-				// Remove client from active list after handling
-				activeClients.remove(clientId);
-			}
-		}
+		// Remove clients from active list after handling
+		activeClients.keySet().removeAll(clientIds);
 	}
 
 	@Override
@@ -257,8 +320,6 @@ public class ConsensusNode implements DeliverCallback {
 		Thread clientListener = new Thread(() -> {
 			System.out.println("Node " + nodeId + " listening for client requests on port " + (5000 + nodeId));
 
-			Long ts = 0L;
-
 			while (isRunning) {
 				try {
 					// Create buffer for receiving
@@ -298,6 +359,11 @@ public class ConsensusNode implements DeliverCallback {
 
 					System.out.println("Parsed transaction: " + transaction.toString());
 
+					if (decidedRequests.contains(transaction.toString())) {
+						System.out.println("Transaction already decided. Skipping...");
+						continue;
+					}
+
 					// Add to transactions waiting list
 					transactionsPool.add(transaction);
 
@@ -305,20 +371,18 @@ public class ConsensusNode implements DeliverCallback {
 					String clientId = clientAddress.getHostAddress() + ":" + clientPort;
 
 					String valueForConsensus = clientId + "/" + transaction.toString();
+					if (!ProposalBatcher.fits(valueForConsensus)) {
+						System.err.println("Transaction from " + clientId + " is too long to propose. Skipping...");
+						continue;
+					}
 
 					// Store client info for later response
 					activeClients.put(clientId, new ClientInfo(clientAddress, clientPort));
 					System.out.println("Active clients: " + activeClients.size());
-					System.out.println("ts - " + ts);
-					this.tsValue.put(ts, valueForConsensus);
-
-					// Start the consensus algorithm
-					if (transactionsPool.size() >= 1) {
-						System.out.println("Node " + nodeId + " is the leader. Proposing value: " + valueForConsensus);
-						consensus.init(this.tsValue.get(ts), writeSet);
-						consensus.start();
-						ts++;
-					}
+
+					// Start the consensus algorithm once the batch is full or has waited long enough
+					pendingRequests.put(transaction.toString(), valueForConsensus);
+					proposalBatcher.add(valueForConsensus);
 
 				} catch (IOException e) {
 					if (isRunning) {
@@ -383,6 +447,7 @@ public class ConsensusNode implements DeliverCallback {
 
 	public void shutdown() {
 		isRunning = false;
+		proposalBatcher.shutdown();
 		if (clientSocket != null) {
 			clientSocket.close();
 		}
@@ -0,0 +1,39 @@
+package consensus;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Threads and clock a ByzantineReadWriteConsensus runs on: the event loop
+ * owning its state, the crypto threads signing and sending its messages, and
+ * the time its leader timeout is measured in. {@link ThreadedConsensusRuntime}
+ * runs them on real threads; a simulation can run them on a virtual clock.
+ */
+public interface ConsensusRuntime {
+
+    /**
+     * Executor of the event loop: runs one task at a time, in the order they
+     * were submitted
+     */
+    Executor loop();
+
+    /**
+     * Executor of the crypto threads
+     */
+    Executor crypto();
+
+    /**
+     * Run a task on the event loop every {@code delayMs}, starting
+     * {@code delayMs} from now
+     */
+    void scheduleWithFixedDelay(Runnable task, long delayMs);
+
+    /**
+     * Current time in milliseconds
+     */
+    long currentTimeMillis();
+
+    /**
+     * Stop running tasks; executors reject the ones submitted afterwards
+     */
+    void shutdown();
+}
@@ -0,0 +1,13 @@
+/**
+ * Callback interface for leader changes
+ */
+package consensus;
+
+public interface LeaderCallback {
+    /**
+     * Called when the consensus moves to a view with a new leader
+     * 
+     * @param leaderId The ID of the new leader
+     */
+    void onLeaderChange(int leaderId);
+}
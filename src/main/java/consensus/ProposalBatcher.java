@@ -0,0 +1,155 @@
+package consensus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups client requests into batches that are proposed as one consensus
+ * value, so a single instance decides a whole block of transactions.
+ *
+ * A batch is proposed as soon as it holds {@code maxBatchSize} requests, or
+ * {@code maxWaitMs} after its first request arrived, whichever comes first,
+ * and earlier if its value would grow too long for a consensus message.
+ * Requests keep their arrival order within and across batches.
+ */
+public class ProposalBatcher {
+
+    /**
+     * Receives every batch, in order
+     */
+    public interface Proposer {
+        void propose(List<String> batch);
+    }
+
+    // Requests are "clientId/transaction" strings, which never contain a line break
+    private static final String SEPARATOR = "\n";
+
+    // Consensus messages write values with writeUTF, limited to 65535 bytes of modified UTF-8
+    private static final int MAX_VALUE_BYTES = 65535;
+
+    private final int maxBatchSize;
+    private final long maxWaitMs;
+    private final Proposer proposer;
+    private final ScheduledExecutorService scheduler;
+
+    private List<String> pending;
+    private int pendingBytes; // Modified UTF-8 bytes of the value the pending requests encode to
+    private ScheduledFuture<?> deadline;
+
+    /**
+     * Constructor
+     *
+     * @param maxBatchSize Requests that trigger an immediate proposal
+     * @param maxWaitMs    Longest time a request waits for others to join its batch
+     * @param proposer     Proposes every batch
+     */
+    public ProposalBatcher(int maxBatchSize, long maxWaitMs, Proposer proposer) {
+        if (maxBatchSize <= 0 || maxWaitMs < 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive and maxWaitMs not negative");
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitMs = maxWaitMs;
+        this.proposer = proposer;
+        this.pending = new ArrayList<>();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "proposal-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Whether a request is short enough to be proposed, alone in its batch
+     */
+    public static boolean fits(String request) {
+        return utfLength(request) <= MAX_VALUE_BYTES;
+    }
+
+    /**
+     * Queue a request for the next batch
+     *
+     * @throws IllegalArgumentException if the request does not {@link #fits}
+     */
+    public synchronized void add(String request) {
+        int requestBytes = utfLength(request);
+        if (requestBytes > MAX_VALUE_BYTES) {
+            throw new IllegalArgumentException("Request of " + requestBytes + " bytes exceeds the maximum of "
+                    + MAX_VALUE_BYTES);
+        }
+        if (!pending.isEmpty() && pendingBytes + utfLength(SEPARATOR) + requestBytes > MAX_VALUE_BYTES) {
+            flush();
+        }
+        pendingBytes += (pending.isEmpty() ? 0 : utfLength(SEPARATOR)) + requestBytes;
+        pending.add(request);
+
+        if (pending.size() >= maxBatchSize || maxWaitMs == 0) {
+            flush();
+        } else if (deadline == null) {
+            deadline = scheduler.schedule(this::flushOnDeadline, maxWaitMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Join the requests of a batch into one consensus value
+     */
+    public static String encode(List<String> batch) {
+        return String.join(SEPARATOR, batch);
+    }
+
+    /**
+     * Split a decided value back into its requests
+     */
+    public static List<String> decode(String value) {
+        if (value == null || value.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return Arrays.asList(value.split(SEPARATOR));
+    }
+
+    /**
+     * Bytes writeUTF encodes a string to: one per character from U+0001 to
+     * U+007F, two for U+0000 and up to U+07FF, three for the others
+     */
+    private static int utfLength(String value) {
+        int bytes = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                bytes++;
+            } else if (c <= 0x07FF) {
+                bytes += 2;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private synchronized void flushOnDeadline() {
+        deadline = null;
+        if (!pending.isEmpty()) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+
+        List<String> batch = pending;
+        pending = new ArrayList<>();
+        pendingBytes = 0;
+        proposer.propose(batch);
+    }
+}
@@ -0,0 +1,92 @@
+package consensus;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Tally of the votes of one consensus instance for (timestamp, value) pairs,
+ * such as its WRITEs or ACKs.
+ *
+ * Each pair keeps a bitmap of the processes that voted for it, so a vote
+ * delivered twice is counted once, and a process is only counted for the
+ * first pair it voted for at a timestamp. Recording a vote costs the same
+ * whatever the number of processes, and reports the quorum exactly once,
+ * with the vote that completes it. Values are compared as given: when
+ * consensus runs on digests, these are the digests.
+ */
+public class QuorumTracker {
+
+    private final int quorum;
+    private final Map<Vote, Tally> tallies;
+    private final Map<Long, BitSet> votersByTimestamp;
+
+    /**
+     * Constructor
+     *
+     * @param quorum Votes for the same pair that make a quorum
+     */
+    public QuorumTracker(int quorum) {
+        if (quorum <= 0) {
+            throw new IllegalArgumentException("quorum must be positive");
+        }
+        this.quorum = quorum;
+        this.tallies = new HashMap<>();
+        this.votersByTimestamp = new HashMap<>();
+    }
+
+    /**
+     * Record the vote of a process
+     *
+     * @return true if this vote completed the quorum for its pair, which
+     *         happens at most once per pair
+     */
+    public boolean vote(int sender, long timestamp, String value) {
+        BitSet voters = votersByTimestamp.computeIfAbsent(timestamp, ts -> new BitSet());
+        if (voters.get(sender)) {
+            // Already voted at this timestamp, for this value or another one
+            return false;
+        }
+        voters.set(sender);
+
+        Tally tally = tallies.computeIfAbsent(new Vote(timestamp, value), vote -> new Tally());
+        tally.count++;
+        return tally.count == quorum;
+    }
+
+    /**
+     * Forget every vote, when the instance starts over under a new leader
+     */
+    public void clear() {
+        tallies.clear();
+        votersByTimestamp.clear();
+    }
+
+    private static class Tally {
+        private int count;
+    }
+
+    private static class Vote {
+        private final long timestamp;
+        private final String value;
+
+        private Vote(long timestamp, String value) {
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Vote vote)) {
+                return false;
+            }
+            return timestamp == vote.timestamp && Objects.equals(value, vote.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(timestamp) * 31 + Objects.hashCode(value);
+        }
+    }
+}
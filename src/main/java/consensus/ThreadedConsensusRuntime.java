@@ -0,0 +1,66 @@
+package consensus;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runtime of a consensus process on real threads: a single event-loop thread
+ * and a pool of {@code consensus.cryptoThreads} crypto threads, by default
+ * half the available processors.
+ */
+public class ThreadedConsensusRuntime implements ConsensusRuntime {
+
+    // Threads signing and sending consensus messages
+    private static final int CRYPTO_THREADS = Integer.getInteger("consensus.cryptoThreads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    private final ScheduledExecutorService loop;
+    private final ExecutorService crypto;
+
+    /**
+     * Constructor
+     *
+     * @param selfId The ID of the process, used to name its threads
+     */
+    public ThreadedConsensusRuntime(int selfId) {
+        this.loop = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "consensus-loop-" + selfId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.crypto = Executors.newFixedThreadPool(CRYPTO_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "consensus-crypto-" + selfId);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public Executor loop() {
+        return loop;
+    }
+
+    @Override
+    public Executor crypto() {
+        return crypto;
+    }
+
+    @Override
+    public void scheduleWithFixedDelay(Runnable task, long delayMs) {
+        loop.scheduleWithFixedDelay(task, delayMs, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public void shutdown() {
+        loop.shutdown();
+        crypto.shutdown();
+    }
+}
@@ -0,0 +1,316 @@
+package consensus;
+
+import communication.ConsensusMessageType;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Deterministic performance study of ByzantineReadWriteConsensus: runs n
+ * processes over a {@link SimulatedNetwork} and reports decisions per virtual
+ * second, messages sent and decision latencies, for every n asked for.
+ *
+ * Every process is proposed every value, as ConsensusNode does with client
+ * requests, and proposes again the values it has not decided yet whenever
+ * the leader changes. A run ends when every correct process decided every
+ * value. The {@code consensus.*} system properties apply as usual.
+ *
+ * Usage: java consensus.ConsensusSimulator [--n 4,7,10] [--proposals 100]
+ * [--rate PER_SECOND] [--pipeline DEPTH] [--latency fixed:MS |
+ * uniform:MIN_MS:MAX_MS | lognormal:MEDIAN_MS:SIGMA] [--loss RATE]
+ * [--rto-ms MS] [--handle-us US] [--sign-us US] [--crypto-threads N]
+ * [--byzantine crash:ID[@MS],slow:ID:MS,equivocate:ID] [--seed SEED]
+ * [--limit-s SECONDS]
+ */
+public class ConsensusSimulator {
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("n", "4,7,10,16,31,49,70,100");
+        DEFAULTS.put("proposals", "100");
+        DEFAULTS.put("rate", "0"); // All proposed at once
+        DEFAULTS.put("pipeline", String.valueOf(ByzantineReadWriteConsensus.DEFAULT_PIPELINE_DEPTH));
+        DEFAULTS.put("latency", "lognormal:1:0.5");
+        DEFAULTS.put("loss", "0");
+        DEFAULTS.put("rto-ms", "200");
+        DEFAULTS.put("handle-us", "20");
+        DEFAULTS.put("sign-us", "1000"); // An RSA-2048 signature
+        DEFAULTS.put("crypto-threads", "2");
+        DEFAULTS.put("byzantine", "");
+        DEFAULTS.put("seed", "1");
+        DEFAULTS.put("limit-s", "3600");
+    }
+
+    // Signatures are real but not what is being measured: small keys keep the runs fast
+    private static final int KEY_SIZE = 512;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+
+        PrintStream out = System.out;
+        out.println("Simulating " + options.get("proposals") + " proposals, pipeline " + options.get("pipeline")
+                + ", latency " + options.get("latency") + ", loss " + options.get("loss")
+                + (options.get("byzantine").isEmpty() ? "" : ", byzantine " + options.get("byzantine"))
+                + ", seed " + options.get("seed"));
+        out.printf("%5s %4s %8s %10s %11s %10s %9s %9s %8s %8s %8s %8s %5s %7s%n",
+                "n", "f", "decided", "virtual s", "decisions/s", "messages", "msgs/dec", "MB",
+                "p50 ms", "p90 ms", "p99 ms", "max ms", "views", "wall s");
+
+        for (String size : options.get("n").split(",")) {
+            Result result = simulate(Integer.parseInt(size.trim()), options);
+            out.println(result.summary());
+            out.println(result.breakdown());
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i].startsWith("--") ? args[i].substring(2) : null;
+            if (name == null || !DEFAULTS.containsKey(name) || i + 1 == args.length) {
+                System.out.println("Usage: java consensus.ConsensusSimulator "
+                        + String.join(" ", DEFAULTS.keySet().stream().map(o -> "[--" + o + " VALUE]").toList()));
+                System.exit(1);
+            }
+            options.put(name, args[++i]);
+        }
+        return options;
+    }
+
+    /**
+     * Run every proposal through n processes
+     */
+    private static Result simulate(int n, Map<String, String> options) throws Exception {
+        int f = (n - 1) / 3;
+        int proposals = Integer.parseInt(options.get("proposals"));
+        double rate = Double.parseDouble(options.get("rate"));
+        long limitMicros = Long.parseLong(options.get("limit-s")) * 1_000_000;
+
+        SimulatedNetwork network = new SimulatedNetwork(
+                SimulatedNetwork.parseLatency(options.get("latency")),
+                Double.parseDouble(options.get("loss")),
+                Long.parseLong(options.get("rto-ms")) * 1000,
+                Long.parseLong(options.get("handle-us")),
+                Long.parseLong(options.get("sign-us")),
+                Integer.parseInt(options.get("crypto-threads")),
+                Long.parseLong(options.get("seed")));
+        Set<Integer> byzantine = applyBehaviours(network, options.get("byzantine"), n);
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(KEY_SIZE);
+        List<Integer> processes = new ArrayList<>();
+        Map<Integer, KeyPair> keys = new HashMap<>();
+        Map<Integer, PublicKey> publicKeys = new HashMap<>();
+        for (int id = 1; id <= n; id++) {
+            processes.add(id);
+            keys.put(id, generator.generateKeyPair());
+            publicKeys.put(id, keys.get(id).getPublic());
+        }
+
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < proposals; i++) {
+            values.add("client/tx" + i);
+        }
+        Map<String, Long> proposedAt = new HashMap<>();
+        Map<Integer, Set<String>> decided = new TreeMap<>();
+        List<Long> latencies = new ArrayList<>();
+        int[] leaderChanges = new int[n + 1];
+        int[] forgedDecisions = new int[1];
+        int[] correctDone = new int[1];
+        long[] lastDecision = new long[1];
+
+        Map<Integer, ByzantineReadWriteConsensus> consensus = new TreeMap<>();
+        for (int id : processes) {
+            SimulatedNetwork.SimulatedProcess process = network.addProcess(id, keys.get(id).getPrivate());
+            ByzantineReadWriteConsensus node = new ByzantineReadWriteConsensus(id, 1, processes, f, process,
+                    keys.get(id).getPrivate(), publicKeys, null, Integer.parseInt(options.get("pipeline")), process);
+            consensus.put(id, node);
+            decided.put(id, new HashSet<>());
+
+            boolean correct = !byzantine.contains(id);
+            node.registerDecideCallback(value -> {
+                if (SimulatedNetwork.isForged(value)) {
+                    forgedDecisions[0]++;
+                }
+                Long proposed = proposedAt.get(value);
+                if (proposed == null || !decided.get(id).add(value) || !correct) {
+                    // A leader's no-op, a repeat, or a Byzantine process's decision
+                    return;
+                }
+                latencies.add(network.now() - proposed);
+                lastDecision[0] = network.now();
+                if (decided.get(id).size() == proposals) {
+                    correctDone[0]++;
+                }
+            });
+            node.registerLeaderCallback(leaderId -> {
+                leaderChanges[id]++;
+                for (String value : values) {
+                    if (proposedAt.containsKey(value) && !decided.get(id).contains(value)) {
+                        propose(node, value);
+                    }
+                }
+            });
+        }
+
+        for (int i = 0; i < proposals; i++) {
+            String value = values.get(i);
+            long at = rate > 0 ? (long) (i * 1_000_000 / rate) : 0;
+            network.schedule(at, () -> {
+                proposedAt.put(value, network.now());
+                for (ByzantineReadWriteConsensus node : consensus.values()) {
+                    propose(node, value);
+                }
+            });
+        }
+
+        int correctProcesses = n - byzantine.size();
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        long wallStart = System.nanoTime();
+        try {
+            // The processes log every message they handle
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+            network.run(limitMicros, () -> correctDone[0] == correctProcesses);
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+        long wallNanos = System.nanoTime() - wallStart;
+        consensus.values().forEach(ByzantineReadWriteConsensus::stop);
+
+        int minDecided = proposals;
+        for (int id : processes) {
+            if (!byzantine.contains(id)) {
+                minDecided = Math.min(minDecided, decided.get(id).size());
+            }
+        }
+        int views = 0;
+        for (int id : processes) {
+            if (!byzantine.contains(id)) {
+                views = Math.max(views, leaderChanges[id]);
+            }
+        }
+        return new Result(n, f, minDecided, lastDecision[0], latencies, views, forgedDecisions[0], network,
+                wallNanos);
+    }
+
+    private static void propose(ByzantineReadWriteConsensus node, String value) {
+        node.init(value, new HashMap<>());
+        node.start();
+    }
+
+    /**
+     * Configure the misbehaving processes, ignoring those beyond n
+     *
+     * @return IDs of the misbehaving processes
+     */
+    private static Set<Integer> applyBehaviours(SimulatedNetwork network, String spec, int n) {
+        Set<Integer> byzantine = new HashSet<>();
+        for (String behaviour : spec.split(",")) {
+            if (behaviour.isBlank()) {
+                continue;
+            }
+            String[] parts = behaviour.trim().split(":");
+            try {
+                String[] target = parts[1].split("@");
+                int processId = Integer.parseInt(target[0]);
+                if (processId < 1 || processId > n) {
+                    continue;
+                }
+                switch (parts[0]) {
+                    case "crash" -> network.crash(processId,
+                            target.length > 1 ? Long.parseLong(target[1]) * 1000 : 0);
+                    case "slow" -> network.slow(processId, Long.parseLong(parts[2]) * 1000);
+                    case "equivocate" -> network.equivocate(processId);
+                    default -> throw new IllegalArgumentException("Unknown behaviour: " + behaviour);
+                }
+                byzantine.add(processId);
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid behaviour: " + behaviour, e);
+            }
+        }
+        if (byzantine.size() > (n - 1) / 3) {
+            System.out.println("Warning: " + byzantine.size() + " misbehaving processes exceed f = " + (n - 1) / 3
+                    + " for n = " + n);
+        }
+        return byzantine;
+    }
+
+    /**
+     * Measurements of one run
+     */
+    private static class Result {
+        private final int n;
+        private final int f;
+        private final int decided; // Values decided by every correct process
+        private final long elapsedMicros; // Until the last decision
+        private final long[] latencies; // Micros from proposal to decision, sorted
+        private final int views;
+        private final int forgedDecisions;
+        private final SimulatedNetwork network;
+        private final long wallNanos;
+
+        private Result(int n, int f, int decided, long elapsedMicros, List<Long> latencies, int views,
+                int forgedDecisions, SimulatedNetwork network, long wallNanos) {
+            this.n = n;
+            this.f = f;
+            this.decided = decided;
+            this.elapsedMicros = elapsedMicros;
+            this.latencies = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            this.views = views;
+            this.forgedDecisions = forgedDecisions;
+            this.network = network;
+            this.wallNanos = wallNanos;
+        }
+
+        private String summary() {
+            double seconds = elapsedMicros / 1e6;
+            long messages = network.getTotalMessages();
+            return String.format("%5d %4d %8d %10.3f %11.1f %10d %9.1f %9.2f %8.2f %8.2f %8.2f %8.2f %5d %7.1f",
+                    n, f, decided, seconds, seconds > 0 ? decided / seconds : 0, messages,
+                    decided > 0 ? (double) messages / decided : 0, network.getTotalBytes() / 1e6,
+                    percentile(0.50), percentile(0.90), percentile(0.99), percentile(1.0), views,
+                    wallNanos / 1e9);
+        }
+
+        private String breakdown() {
+            StringBuilder line = new StringBuilder("      ");
+            for (ConsensusMessageType type : ConsensusMessageType.values()) {
+                if (network.getMessages(type) > 0) {
+                    line.append(' ').append(type).append('=').append(network.getMessages(type));
+                }
+            }
+            line.append(" retransmissions=").append(network.getRetransmissions())
+                    .append(" events=").append(network.getEventsRun());
+            if (forgedDecisions > 0) {
+                line.append(" FORGED DECISIONS=").append(forgedDecisions);
+            }
+            return line.toString();
+        }
+
+        /**
+         * Latency at a quantile, in milliseconds (nearest rank)
+         */
+        private double percentile(double quantile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(quantile * latencies.length);
+            return latencies[Math.max(0, rank - 1)] / 1000.0;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package consensus;
+
+import communication.CollectMessage;
+import communication.ConsensusMessageType;
+import communication.StateMessage;
+import communication.WriteMessage;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Regression test of a fast path refused in a view after the first one.
+ *
+ * Seven processes run over a {@link SimulatedNetwork}; the leader of view 0,
+ * process 1, crashes at once. Before it does, its messages write a value in
+ * instance 1 at processes 5, 6 and 7 alone. Fewer than f + 1 of the votes
+ * that install view 1 report the instance, so its leader does not take it
+ * over: it starts it again on the fast path, which those three refuse. The
+ * full protocol then writes the old value, which the processes that accepted
+ * the fast path must not mistake for a write they already made: the instance
+ * must be decided still in view 1, with the same value everywhere.
+ *
+ * Usage: java consensus.FastPathFallbackTest
+ */
+public class FastPathFallbackTest {
+
+    private static final int N = 7;
+    private static final int F = 2;
+    private static final int CRASHED = 1;
+    private static final List<Integer> WRITTEN = List.of(5, 6, 7); // Registers the crashed leader wrote
+    private static final long LIMIT_MICROS = 60_000_000;
+
+    public static void main(String[] args) throws Exception {
+        SimulatedNetwork network = new SimulatedNetwork(random -> 1000, 0, 0, 20, 100, 2, 1);
+        network.crash(CRASHED, 0);
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        List<Integer> processes = new ArrayList<>();
+        Map<Integer, KeyPair> keys = new HashMap<>();
+        Map<Integer, PublicKey> publicKeys = new HashMap<>();
+        for (int id = 1; id <= N; id++) {
+            processes.add(id);
+            keys.put(id, generator.generateKeyPair());
+            publicKeys.put(id, keys.get(id).getPublic());
+        }
+
+        Map<Integer, ByzantineReadWriteConsensus> consensus = new TreeMap<>();
+        Map<Integer, Integer> leaders = new HashMap<>();
+        Map<Integer, Integer> decidedLeaders = new TreeMap<>();
+        Map<Integer, String> decided = new TreeMap<>();
+        for (int id : processes) {
+            SimulatedNetwork.SimulatedProcess process = network.addProcess(id, keys.get(id).getPrivate());
+            ByzantineReadWriteConsensus node = new ByzantineReadWriteConsensus(id, 1, processes, F, process,
+                    keys.get(id).getPrivate(), publicKeys, null, ByzantineReadWriteConsensus.DEFAULT_PIPELINE_DEPTH,
+                    process);
+            consensus.put(id, node);
+            leaders.put(id, 1);
+
+            node.registerDecideCallback(value -> {
+                if (!decided.containsKey(id)) {
+                    decided.put(id, value);
+                    decidedLeaders.put(id, leaders.get(id));
+                }
+            });
+            node.registerLeaderCallback(leaderId -> {
+                leaders.put(id, leaderId);
+                if (!decided.containsKey(id)) {
+                    propose(node, "client/tx0");
+                }
+            });
+            propose(node, "client/tx0");
+        }
+
+        // The crashed leader's fast path and the WRITEs of a quorum, seen by those processes only
+        Map<Integer, StateMessage> collected = new HashMap<>();
+        collected.put(CRASHED, new StateMessage(1, 0, "old", List.of(), new HashMap<>()));
+        for (int destination : WRITTEN) {
+            network.inject(1000, CRASHED, destination, ConsensusMessageType.COLLECT, 1, 0,
+                    new CollectMessage(1, collected));
+            for (int source = 1; source <= N - F; source++) {
+                network.inject(2000, source, destination, ConsensusMessageType.WRITE, 1, 0,
+                        new WriteMessage(1, 1, "old"));
+            }
+        }
+
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        try {
+            // The processes log every message they handle
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+            network.run(LIMIT_MICROS, () -> decided.size() == N - 1);
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+        consensus.values().forEach(ByzantineReadWriteConsensus::stop);
+
+        boolean agreed = decided.size() == N - 1 && decided.values().stream().distinct().count() == 1;
+        boolean inViewOne = decidedLeaders.values().stream().allMatch(leaderId -> leaderId == 2);
+        System.out.println("decided=" + decided + " leaders=" + decidedLeaders);
+        if (!agreed || !inViewOne) {
+            System.out.println("FAIL: instance 1 must be decided in view 1, with the same value everywhere");
+            System.exit(1);
+        }
+        System.out.println("PASS");
+    }
+
+    private static void propose(ByzantineReadWriteConsensus node, String value) {
+        node.init(value, new HashMap<>());
+        node.start();
+    }
+}
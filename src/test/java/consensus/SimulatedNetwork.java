@@ -0,0 +1,452 @@
+package consensus;
+
+import communication.AckMessage;
+import communication.CapacityCallback;
+import communication.ConsensusMessage;
+import communication.ConsensusMessageType;
+import communication.DeliverCallback;
+import communication.Message;
+import communication.PerfectLink;
+import communication.WriteMessage;
+import util.CryptoUtil;
+
+import java.security.PrivateKey;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Discrete-event network running many consensus processes in one thread, on a
+ * virtual clock in microseconds.
+ *
+ * Every process gets a {@link PerfectLink} and a {@link ConsensusRuntime}.
+ * A message takes a delay drawn from a {@link LatencyModel}; each time it is
+ * lost, with probability {@code lossRate}, the perfect link resends it after
+ * {@code retransmitMicros}, so every message still arrives, only later. The
+ * event loop of a process is a single virtual CPU on which every task costs
+ * {@code handleMicros}, and its crypto threads are {@code cryptoThreads}
+ * virtual CPUs on which every task, which signs once, costs
+ * {@code signMicros}. Events happening at the same time run in the order they
+ * were scheduled, and all randomness comes from one seeded generator, so a
+ * run is fully reproducible.
+ *
+ * A process can also misbehave: crash at a given time, sending and handling
+ * nothing from then on; be slow, delaying every message it sends; or
+ * equivocate, sending WRITE and ACK messages for a different value to the
+ * processes with an even ID.
+ */
+public class SimulatedNetwork {
+
+    /**
+     * One-way delay of messages
+     */
+    public interface LatencyModel {
+        long sampleMicros(Random random);
+    }
+
+    // Prepended to the values an equivocating process writes to half its peers
+    private static final String FORGED_PREFIX = "forged/";
+
+    private final LatencyModel latency;
+    private final double lossRate;
+    private final long retransmitMicros;
+    private final long handleMicros;
+    private final long signMicros;
+    private final int cryptoThreads;
+    private final Random random;
+
+    private final PriorityQueue<Event> events;
+    private long now;
+    private long scheduled; // Events scheduled so far, ordering those at the same time
+    private long eventsRun;
+
+    private final Map<Integer, SimulatedProcess> processes;
+    private final Map<Integer, Long> crashTimes;
+    private final Map<Integer, Long> slowMicros;
+    private final Set<Integer> equivocating;
+
+    private final Map<ConsensusMessageType, long[]> sent; // Messages and bytes by type
+    private long retransmissions;
+
+    /**
+     * Constructor
+     *
+     * @param latency          Delay of every message
+     * @param lossRate         Probability that a copy of a message is lost, in [0, 1)
+     * @param retransmitMicros Delay a lost copy adds before the link resends it
+     * @param handleMicros     Event-loop time of every consensus task
+     * @param signMicros       Crypto-thread time of every signing task
+     * @param cryptoThreads    Crypto threads of every process
+     * @param seed             Seed of the latency and loss generator
+     */
+    public SimulatedNetwork(LatencyModel latency, double lossRate, long retransmitMicros, long handleMicros,
+            long signMicros, int cryptoThreads, long seed) {
+        if (lossRate < 0 || lossRate >= 1) {
+            throw new IllegalArgumentException("lossRate must be in [0, 1)");
+        }
+        if (retransmitMicros < 0 || handleMicros < 0 || signMicros < 0 || cryptoThreads <= 0) {
+            throw new IllegalArgumentException("Costs must not be negative and cryptoThreads must be positive");
+        }
+        this.latency = latency;
+        this.lossRate = lossRate;
+        this.retransmitMicros = retransmitMicros;
+        this.handleMicros = handleMicros;
+        this.signMicros = signMicros;
+        this.cryptoThreads = cryptoThreads;
+        this.random = new Random(seed);
+        this.events = new PriorityQueue<>();
+        this.processes = new TreeMap<>();
+        this.crashTimes = new HashMap<>();
+        this.slowMicros = new HashMap<>();
+        this.equivocating = new HashSet<>();
+        this.sent = new EnumMap<>(ConsensusMessageType.class);
+    }
+
+    /**
+     * Parse a latency model: {@code fixed:MS}, {@code uniform:MIN_MS:MAX_MS}
+     * or {@code lognormal:MEDIAN_MS:SIGMA}
+     */
+    public static LatencyModel parseLatency(String spec) {
+        String[] parts = spec.split(":");
+        try {
+            switch (parts[0]) {
+                case "fixed": {
+                    long micros = toMicros(parts[1]);
+                    return random -> micros;
+                }
+                case "uniform": {
+                    long min = toMicros(parts[1]);
+                    long max = toMicros(parts[2]);
+                    if (max < min) {
+                        throw new IllegalArgumentException("Latency maximum below its minimum: " + spec);
+                    }
+                    return random -> min + (long) (random.nextDouble() * (max - min));
+                }
+                case "lognormal": {
+                    double median = toMicros(parts[1]);
+                    double sigma = Double.parseDouble(parts[2]);
+                    return random -> (long) (median * Math.exp(sigma * random.nextGaussian()));
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown latency model: " + spec);
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid latency model: " + spec, e);
+        }
+    }
+
+    private static long toMicros(String millis) {
+        return (long) (Double.parseDouble(millis) * 1000);
+    }
+
+    /**
+     * Add a process to the network
+     *
+     * @param key Private key it signs with, used to sign the messages it forges
+     *            if it equivocates
+     */
+    public SimulatedProcess addProcess(int processId, PrivateKey key) {
+        SimulatedProcess process = new SimulatedProcess(processId, key);
+        processes.put(processId, process);
+        return process;
+    }
+
+    /**
+     * Crash a process at a virtual time
+     */
+    public void crash(int processId, long atMicros) {
+        crashTimes.put(processId, atMicros);
+    }
+
+    /**
+     * Delay every message a process sends
+     */
+    public void slow(int processId, long extraMicros) {
+        slowMicros.put(processId, extraMicros);
+    }
+
+    /**
+     * Make a process send WRITE and ACK messages for a forged value to the
+     * processes with an even ID
+     */
+    public void equivocate(int processId) {
+        equivocating.add(processId);
+    }
+
+    /**
+     * Deliver a consensus message signed by a process to another one at a
+     * virtual time, whatever the source does itself
+     */
+    public void inject(long atMicros, int source, int destination, ConsensusMessageType type, int instance,
+            int view, Object payload) {
+        Message message;
+        try {
+            ConsensusMessage consensusMsg = new ConsensusMessage(type, view, payload);
+            consensusMsg.setSignature(CryptoUtil.sign(consensusMsg.getContent(), processes.get(source).key));
+            message = new Message(type, instance, consensusMsg.serialize());
+        } catch (Exception e) {
+            throw new RuntimeException("Error injecting consensus message: " + e.getMessage(), e);
+        }
+
+        SimulatedProcess target = processes.get(destination);
+        schedule(atMicros, () -> {
+            if (target.callback != null && !isCrashed(destination)) {
+                target.callback.onDeliver(message, source);
+            }
+        });
+    }
+
+    public boolean isCrashed(int processId) {
+        Long crashTime = crashTimes.get(processId);
+        return crashTime != null && now >= crashTime;
+    }
+
+    /**
+     * Whether a value was forged by an equivocating process
+     */
+    public static boolean isForged(String value) {
+        return value != null && value.startsWith(FORGED_PREFIX);
+    }
+
+    /**
+     * Current virtual time, in microseconds
+     */
+    public long now() {
+        return now;
+    }
+
+    /**
+     * Run a task at a virtual time, or now if it is already past
+     */
+    public void schedule(long atMicros, Runnable task) {
+        events.add(new Event(Math.max(atMicros, now), scheduled++, task));
+    }
+
+    /**
+     * Run events in time order until a condition holds, no event is left or
+     * the next one is past a virtual time
+     *
+     * @return Whether the condition holds
+     */
+    public boolean run(long untilMicros, BooleanSupplier done) {
+        while (!done.getAsBoolean()) {
+            Event event = events.peek();
+            if (event == null || event.time > untilMicros) {
+                return false;
+            }
+            events.poll();
+            now = event.time;
+            eventsRun++;
+            event.task.run();
+        }
+        return true;
+    }
+
+    public long getEventsRun() {
+        return eventsRun;
+    }
+
+    public long getMessages(ConsensusMessageType type) {
+        long[] counts = sent.get(type);
+        return counts == null ? 0 : counts[0];
+    }
+
+    public long getBytes(ConsensusMessageType type) {
+        long[] counts = sent.get(type);
+        return counts == null ? 0 : counts[1];
+    }
+
+    public long getTotalMessages() {
+        return sent.values().stream().mapToLong(counts -> counts[0]).sum();
+    }
+
+    public long getTotalBytes() {
+        return sent.values().stream().mapToLong(counts -> counts[1]).sum();
+    }
+
+    /**
+     * Copies of messages lost and sent again
+     */
+    public long getRetransmissions() {
+        return retransmissions;
+    }
+
+    /**
+     * Carry a message from one process to another
+     */
+    private void transmit(int source, int destination, Message message) {
+        if (isCrashed(source)) {
+            return;
+        }
+        Message delivered = equivocating.contains(source) && destination % 2 == 0
+                ? forge(source, message)
+                : message;
+
+        long[] counts = sent.computeIfAbsent(delivered.getConsensusType(), type -> new long[2]);
+        counts[0]++;
+        counts[1] += delivered.serializedSize();
+
+        long delay = latency.sampleMicros(random);
+        while (lossRate > 0 && random.nextDouble() < lossRate) {
+            delay += retransmitMicros;
+            retransmissions++;
+        }
+        delay += slowMicros.getOrDefault(source, 0L);
+
+        SimulatedProcess target = processes.get(destination);
+        schedule(now + delay, () -> {
+            if (target != null && target.callback != null && !isCrashed(destination)) {
+                target.callback.onDeliver(delivered, source);
+            }
+        });
+    }
+
+    /**
+     * The same WRITE or ACK for a forged value, signed by its sender
+     */
+    private Message forge(int source, Message message) {
+        ConsensusMessage original = ConsensusMessage.deserialize(message.getPayload());
+        Object forged;
+        if (original.getPayload() instanceof WriteMessage write) {
+            forged = new WriteMessage(write.getInstance(), write.getTimestamp(), FORGED_PREFIX + write.getValue());
+        } else if (original.getPayload() instanceof AckMessage ack) {
+            forged = new AckMessage(ack.getInstance(), ack.getTimestamp(), FORGED_PREFIX + ack.getValue());
+        } else {
+            return message;
+        }
+
+        try {
+            ConsensusMessage forgedMsg = new ConsensusMessage(original.getType(), original.getView(), forged);
+            forgedMsg.setSignature(CryptoUtil.sign(forgedMsg.getContent(), processes.get(source).key));
+            return new Message(message.getConsensusType(), message.getConsensusInstance(), forgedMsg.serialize());
+
+        } catch (Exception e) {
+            throw new RuntimeException("Error forging consensus message: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Link and runtime of one simulated process
+     */
+    public class SimulatedProcess implements PerfectLink, ConsensusRuntime {
+        private final int processId;
+        private final PrivateKey key;
+        private final long[] cryptoFreeAt; // When each crypto thread finishes its tasks
+        private long loopFreeAt; // When the event loop finishes its tasks
+        private DeliverCallback callback;
+        private boolean shutdown;
+
+        private SimulatedProcess(int processId, PrivateKey key) {
+            this.processId = processId;
+            this.key = key;
+            this.cryptoFreeAt = new long[cryptoThreads];
+        }
+
+        @Override
+        public void send(Message message, int destination) {
+            transmit(processId, destination, message);
+        }
+
+        @Override
+        public boolean trySend(Message message, int destination) {
+            transmit(processId, destination, message);
+            return true;
+        }
+
+        @Override
+        public Set<Integer> broadcast(Message message) {
+            for (int destination : processes.keySet()) {
+                if (destination != processId) {
+                    transmit(processId, destination, message);
+                }
+            }
+            return Set.of();
+        }
+
+        @Override
+        public void registerDeliverCallback(DeliverCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void registerCapacityCallback(CapacityCallback callback) {
+            // The simulated network never refuses a message
+        }
+
+        @Override
+        public Executor loop() {
+            return task -> {
+                checkRunning();
+                loopFreeAt = Math.max(now, loopFreeAt) + handleMicros;
+                schedule(loopFreeAt, () -> runUnlessCrashed(task));
+            };
+        }
+
+        @Override
+        public Executor crypto() {
+            return task -> {
+                checkRunning();
+                int thread = 0;
+                for (int i = 1; i < cryptoFreeAt.length; i++) {
+                    if (cryptoFreeAt[i] < cryptoFreeAt[thread]) {
+                        thread = i;
+                    }
+                }
+                cryptoFreeAt[thread] = Math.max(now, cryptoFreeAt[thread]) + signMicros;
+                schedule(cryptoFreeAt[thread], () -> runUnlessCrashed(task));
+            };
+        }
+
+        @Override
+        public void scheduleWithFixedDelay(Runnable task, long delayMs) {
+            long delayMicros = delayMs * 1000;
+            schedule(now + delayMicros, new Runnable() {
+                @Override
+                public void run() {
+                    if (!shutdown && !isCrashed(processId)) {
+                        loop().execute(task);
+                        schedule(now + delayMicros, this);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return now / 1000;
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        private void checkRunning() {
+            if (shutdown) {
+                throw new RejectedExecutionException("Process " + processId + " shut down");
+            }
+        }
+
+        private void runUnlessCrashed(Runnable task) {
+            if (!shutdown && !isCrashed(processId)) {
+                task.run();
+            }
+        }
+    }
+
+    private record Event(long time, long sequence, Runnable task) implements Comparable<Event> {
+        @Override
+        public int compareTo(Event other) {
+            int byTime = Long.compare(time, other.time);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+}